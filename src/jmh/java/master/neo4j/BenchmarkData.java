@@ -0,0 +1,140 @@
+package master.neo4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Datasets for the benchmarks: the three csv files, generated from a fixed
+ * seed so that every run measures the same data, with the raw spacing and
+ * case the preprocessing has to normalize.
+ *
+ * Every dataset, whatever its size, has the rows the benchmark queries look
+ * for, so that no query measures an empty result.
+ *
+ * @author fran
+ */
+class BenchmarkData {
+
+    // Query parameters, as they are after the preprocessing
+    static final String PAPER = "conference paper 0 on graph databases";
+    static final String CONFERENCE = "conf0";
+    static final String AUTHOR = "author surname0";
+    static final String JOURNAL = "journal0";
+    static final int VOLUME = 1;
+
+    private static final long SEED = 42;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Writes conferences.csv, journals.csv and friendships.csv into dir.
+     * Half of the papers go to conferences and half to journals.
+     *
+     * @param dir
+     * @param papers
+     * @throws IOException
+     */
+    static void generate(File dir, int papers) throws IOException {
+        Random random = new Random(SEED);
+        int authors = Math.max(100, papers / 4);
+        int reviewers = Math.max(20, papers / 100);
+        int venues = Math.max(10, papers / 100);
+        try (Writer w = open(new File(dir, "conferences.csv"))) {
+            w.write("Title,Authors,ConferenceName,Year,City,Reviewer\n");
+            for (int i = 0; i < papers / 2; i++) {
+                w.write("Conference Paper " + i + " On Graph Databases,");
+                writeAuthors(w, random, authors, i);
+                w.write(",CONF" + i % venues + "," + (1990 + random.nextInt(25))
+                        + ", City" + random.nextInt(100) + " ,Reviewer" + random.nextInt(reviewers) + "\n");
+            }
+        }
+        try (Writer w = open(new File(dir, "journals.csv"))) {
+            w.write("Title,Authors,JournalName,Volume,Reviewer\n");
+            for (int i = 0; i < papers - papers / 2; i++) {
+                w.write("Journal Paper " + i + " On Graph Databases,");
+                writeAuthors(w, random, authors, i);
+                // The first paper of journal0 volume 1 is reviewed by
+                // Reviewer0, a friend of author 0
+                w.write(",JOURNAL" + i % venues + "," + (VOLUME + i / venues % 10)
+                        + "," + (i == 0 ? "Reviewer0" : "Reviewer" + random.nextInt(reviewers)) + "\n");
+            }
+        }
+        try (Writer w = open(new File(dir, "friendships.csv"))) {
+            w.write("Reviewer,Author\n");
+            w.write("Reviewer0,Author Surname0\n");
+            for (int i = 0; i < reviewers; i++) {
+                for (int j = 0; j < 5; j++) {
+                    w.write(" Reviewer" + i + ",Author Surname" + random.nextInt(authors) + "\n");
+                }
+            }
+        }
+    }
+
+    // The first paper of each file is written by author 0, among others
+    private static void writeAuthors(Writer w, Random random, int authors, int paper)
+            throws IOException {
+        int count = 1 + random.nextInt(5);
+        for (int j = 0; j < count; j++) {
+            int author = paper == 0 && j == 0 ? 0 : random.nextInt(authors);
+            w.write((j > 0 ? "; " : "") + "Author Surname" + author);
+        }
+    }
+
+    /**
+     * Normalizes the three csv files of dir into the processed_*.csv files the
+     * loaders and the bulk importer read.
+     *
+     * @param dir
+     * @throws IOException
+     */
+    static void preprocess(File dir) throws IOException {
+        for (String name : new String[]{"conferences.csv", "journals.csv", "friendships.csv"}) {
+            CsvPreprocessor.process(new File(dir, name), new File(dir, "processed_" + name));
+        }
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return dir;
+    }
+
+    static void delete(File dir) {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * The loaders and queries report every step on standard output, which
+     * would flood the benchmark output.
+     *
+     * @return the standard output, to be restored afterwards
+     */
+    static PrintStream silenceOut() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return out;
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+}
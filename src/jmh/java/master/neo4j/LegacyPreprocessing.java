@@ -0,0 +1,61 @@
+package master.neo4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * The preprocessing as it was written before CsvPreprocessor, kept as the
+ * baseline of PreprocessBenchmark.
+ *
+ * @author fran
+ */
+class LegacyPreprocessing {
+
+    private LegacyPreprocessing() {
+    }
+
+    static void preProcessFile(File file, File fileOutput) throws IOException {
+        String line;
+        String[] columStrings;
+        String[] authors;
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fileOutput));
+                BufferedReader fileReader = new BufferedReader(new FileReader(file))) {
+            String processedLine;
+            bw.write(fileReader.readLine());
+            bw.newLine();
+            while ((line = fileReader.readLine()) != null) {
+                columStrings = line.split(",");
+                authors = columStrings[1].split(";");
+                processedLine = processLine(columStrings, authors);
+                bw.write(processedLine);
+                bw.newLine();
+            }
+        }
+    }
+
+    static String processLine(String[] colStrings, String[] authStrings) {
+        String processedLine = "";
+        for (int i = 0; i <= colStrings.length - 1; i++) {
+            if (i != 1) {
+                processedLine += colStrings[i].trim();
+                if (i != colStrings.length - 1) {
+                    processedLine += ",";
+                }
+            } else {
+                for (int j = 0; j <= authStrings.length - 1; j++) {
+                    processedLine += authStrings[j].trim();
+                    if (j != (authStrings.length - 1)) {
+                        processedLine += ";";
+                    } else {
+                        processedLine += ",";
+                    }
+                }
+            }
+        }
+        return processedLine.toLowerCase();
+    }
+}
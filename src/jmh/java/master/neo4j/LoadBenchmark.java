@@ -0,0 +1,102 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each of the transactional loaders on its own, loading its processed file
+ * into an empty store with the schema in place. A load can only be measured
+ * once per store, so every iteration is a single load on a new store, and
+ * the percentiles are taken over the iterations, enough of them for p90 and
+ * p95 to differ from the slowest load. There is no throughput mode for the
+ * same reason: the rows counter gives the rows of each load, and with the
+ * time of the loads the rows per millisecond.
+ *
+ * @author fran
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 30)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int papers;
+
+    private File dir;
+    private File store;
+    private Neo4jApp app;
+    private PrintStream out;
+
+    /**
+     * Rows loaded, reported next to the time of the loads.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Rows {
+
+        public long rows;
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        dir = BenchmarkData.tempDir("load");
+        BenchmarkData.generate(dir, papers);
+        BenchmarkData.preprocess(dir);
+        out = BenchmarkData.silenceOut();
+    }
+
+    @Setup(Level.Iteration)
+    public void openStore() throws IOException {
+        store = BenchmarkData.tempDir("store");
+        app = new Neo4jApp(store.getPath());
+        app.setCheckpointFile(new File(dir, "load.checkpoint"));
+        SchemaBootstrap.ensureSchema(app.getDatabase());
+        app.openBatchLoader().clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeStore() {
+        app.shutdown();
+        BenchmarkData.delete(store);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        System.setOut(out);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void loadConferences(Rows rows) {
+        rows.rows += app.loadConferences(dir.getPath());
+    }
+
+    @Benchmark
+    public void loadJournals(Rows rows) {
+        rows.rows += app.loadJournals(dir.getPath());
+    }
+
+    @Benchmark
+    public void loadFriendships(Rows rows) {
+        rows.rows += app.loadFriendships(dir.getPath());
+    }
+}
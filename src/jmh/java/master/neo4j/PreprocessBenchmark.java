@@ -0,0 +1,77 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Preprocessing of conferences.csv, the String based one it had at first
+ * against CsvPreprocessor, reading through a Reader and through a memory
+ * mapping. One operation is the whole file.
+ *
+ * @author fran
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreprocessBenchmark {
+
+    // Papers of the dataset, half of them in conferences.csv
+    @Param({"1000", "10000", "100000"})
+    public int papers;
+
+    private File dir;
+    private File in;
+    private File out;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchmarkData.tempDir("preprocess");
+        BenchmarkData.generate(dir, papers);
+        in = new File(dir, "conferences.csv");
+        out = new File(dir, "processed_conferences.csv");
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void legacyPreProcessFile() throws IOException {
+        LegacyPreprocessing.preProcessFile(in, out);
+    }
+
+    @Benchmark
+    public long csvPreprocessor() throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(in), "UTF-8");
+                OutputStream stream = new FileOutputStream(out)) {
+            return new CsvPreprocessor(stream).process(reader);
+        }
+    }
+
+    @Benchmark
+    public long mappedCsvPreprocessor() throws IOException {
+        return CsvPreprocessor.process(in, out);
+    }
+}
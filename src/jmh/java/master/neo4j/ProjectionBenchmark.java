@@ -0,0 +1,71 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the projection from the database against mapping it from its
+ * snapshot, as a restart does.
+ *
+ * @author fran
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProjectionBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int papers;
+
+    private File dir;
+    private File snapshot;
+    private Neo4jApp app;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        out = BenchmarkData.silenceOut();
+        dir = BenchmarkData.tempDir("projection");
+        BenchmarkData.generate(dir, papers);
+        BenchmarkData.preprocess(dir);
+        File store = new File(dir, "graph.db");
+        new BulkImporter(store.getPath()).importAll(dir.getPath());
+        app = new Neo4jApp(store.getPath());
+        snapshot = new File(dir, "projection.snapshot");
+        GraphProjection.build(app.getDatabase(), 0).save(snapshot);
+    }
+
+    @TearDown
+    public void tearDown() {
+        app.shutdown();
+        System.setOut(out);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public GraphProjection build() {
+        return GraphProjection.build(app.getDatabase(), 0);
+    }
+
+    @Benchmark
+    public GraphProjection load() throws IOException {
+        return GraphProjection.load(snapshot, 0);
+    }
+}
@@ -0,0 +1,110 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The four queries, results file included, on an embedded store bulk
+ * imported from the benchmark dataset, or on its projection.
+ *
+ * @author fran
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int papers;
+
+    // Engine of query 4, cypher or native
+    @Param({"cypher", "native"})
+    public String q4Engine;
+
+    // What the queries run on, the database or its projection
+    @Param({"database", "projection"})
+    public String engine;
+
+    private File dir;
+    private File store;
+    private File results;
+    private Neo4jApp app;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        out = BenchmarkData.silenceOut();
+        dir = BenchmarkData.tempDir("query");
+        BenchmarkData.generate(dir, papers);
+        BenchmarkData.preprocess(dir);
+        store = new File(dir, "graph.db");
+        new BulkImporter(store.getPath()).importAll(dir.getPath());
+        app = new Neo4jApp(store.getPath());
+        results = new File(dir, "results.log");
+        app.setResultFile(results);
+        app.setNativeQ4("native".equals(q4Engine));
+        if ("projection".equals(engine)) {
+            app.setProjection(GraphProjection.build(app.getDatabase(), 0));
+            out.println("Store " + FileUtils.sizeOfDirectory(store) / 1024 + " KB on disk, "
+                    + app.getProjection());
+        }
+    }
+
+    /**
+     * Empties the results file, which is appended to, so that every
+     * iteration writes to a file of the same size.
+     *
+     * @throws IOException
+     */
+    @Setup(Level.Iteration)
+    public void truncateResults() throws IOException {
+        new FileOutputStream(results).close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        app.shutdown();
+        System.setOut(out);
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public void runQ1() throws IOException {
+        app.runQ1(BenchmarkData.PAPER);
+    }
+
+    @Benchmark
+    public void runQ2() throws IOException {
+        app.runQ2(BenchmarkData.CONFERENCE);
+    }
+
+    @Benchmark
+    public void runQ3() throws IOException {
+        app.runQ3(BenchmarkData.AUTHOR);
+    }
+
+    @Benchmark
+    public void runQ4() {
+        app.runQ4(BenchmarkData.JOURNAL, BenchmarkData.VOLUME);
+    }
+}
@@ -0,0 +1,204 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a file of query jobs on a thread pool and writes their results in the
+ * order of the file.
+ *
+ * Each line of the file is a job: the query and its parameters, separated
+ * by commas, as in
+ *
+ * Q1,performance evaluation of database replication systems
+ * Q4,ksii,8
+ *
+ * Blank lines and lines starting with # are skipped.
+ *
+ * Each job runs in its own transaction, which only reads, and buffers its
+ * result. Results are written in job order as soon as all jobs before are
+ * written, and at most window jobs are run ahead of the oldest one not
+ * written yet, which bounds the results held in memory.
+ *
+ * @author fran
+ */
+class BatchQueryRunner {
+
+    private final Neo4jApp app;
+    private final int threads;
+    private final int window;
+
+    /**
+     * @param app
+     * @param threads threads running jobs
+     * @param window jobs that may be run or waiting to be written at once
+     */
+    public BatchQueryRunner(Neo4jApp app, int threads, int window) {
+        if (threads <= 0 || window < threads) {
+            throw new IllegalArgumentException("Threads must be positive and the window"
+                    + " at least as big as the threads");
+        }
+        this.app = app;
+        this.threads = threads;
+        this.window = window;
+    }
+
+    /**
+     * The outcome of a job, either its result or why it failed.
+     */
+    private static class Outcome {
+
+        private final int line;
+        private final String query;
+        private ResultSink.Result result;
+        private Exception failure;
+        private long nanos;
+
+        Outcome(int line, String query) {
+            this.line = line;
+            this.query = query;
+        }
+    }
+
+    /**
+     * Latencies of the jobs of one query, in nanoseconds.
+     */
+    private static class Latencies {
+
+        private long[] nanos = new long[1024];
+        private int count;
+
+        void add(long value) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = value;
+        }
+
+        double percentileMillis(double percentile) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    /**
+     * Runs every job of the file and reports throughput and latencies.
+     *
+     * @param jobs
+     * @return number of jobs that failed
+     * @throws IOException if the file can't be read or the results written
+     */
+    public int run(File jobs) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<Outcome>> pending = new ArrayDeque<>();
+        Map<String, Latencies> latencies = new TreeMap<>();
+        int[] failed = new int[1];
+        long start = System.nanoTime();
+        int submitted = 0;
+        try (CsvTokenizer csv = new CsvTokenizer(new InputStreamReader(
+                new FileInputStream(jobs), "UTF-8"))) {
+            int line = 0;
+            while (csv.next()) {
+                line++;
+                String[] fields = csv.toArray();
+                String query = fields[0].trim().toUpperCase();
+                if (query.isEmpty() || query.startsWith("#")) {
+                    continue;
+                }
+                String[] params = Arrays.copyOfRange(fields, 1, fields.length);
+                if (pending.size() == window) {
+                    writeNext(pending.poll(), latencies, failed);
+                }
+                pending.add(pool.submit(job(line, query, params)));
+                submitted++;
+            }
+            while (!pending.isEmpty()) {
+                writeNext(pending.poll(), latencies, failed);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        report(submitted, System.nanoTime() - start, latencies, failed[0]);
+        return failed[0];
+    }
+
+    private Callable<Outcome> job(final int line, final String query, final String[] params) {
+        return new Callable<Outcome>() {
+            @Override
+            public Outcome call() {
+                Outcome outcome = new Outcome(line, query);
+                long start = System.nanoTime();
+                try {
+                    if (params.length != ("Q4".equals(query) ? 2 : 1)) {
+                        throw new IllegalArgumentException("Wrong number of parameters for " + query);
+                    }
+                    try (ResultSink.Result result = app.openResult(query, true)) {
+                        app.run(query, params, result);
+                        outcome.result = result;
+                    }
+                } catch (Exception e) {
+                    outcome.failure = e;
+                }
+                outcome.nanos = System.nanoTime() - start;
+                return outcome;
+            }
+        };
+    }
+
+    private void writeNext(Future<Outcome> next, Map<String, Latencies> latencies, int[] failed)
+            throws IOException {
+        Outcome outcome;
+        try {
+            outcome = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running the jobs", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Job failed unexpectedly", e.getCause());
+        }
+        if (outcome.failure != null) {
+            failed[0]++;
+            System.err.println("Job in line " + outcome.line + " (" + outcome.query
+                    + ") failed: " + outcome.failure);
+            return;
+        }
+        app.results().write(outcome.result);
+        Latencies query = latencies.get(outcome.query);
+        if (query == null) {
+            query = new Latencies();
+            latencies.put(outcome.query, query);
+        }
+        query.add(outcome.nanos);
+    }
+
+    private void report(int jobs, long nanos, Map<String, Latencies> latencies, int failed) {
+        double seconds = nanos / 1e9;
+        System.out.println("\n===========================\n"
+                + jobs + " jobs run on " + threads + " threads in "
+                + String.format("%.1f", seconds) + " s: "
+                + (long) (jobs / Math.max(seconds, 1e-9)) + " jobs/s, "
+                + failed + " failed\n"
+                + "===========================");
+        for (Map.Entry<String, Latencies> query : latencies.entrySet()) {
+            Latencies l = query.getValue();
+            System.out.println(query.getKey() + ": " + l.count + " jobs, p50 "
+                    + String.format("%.2f", l.percentileMillis(50)) + " ms, p99 "
+                    + String.format("%.2f", l.percentileMillis(99)) + " ms");
+        }
+        System.out.println();
+    }
+}
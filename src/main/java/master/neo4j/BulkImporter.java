@@ -0,0 +1,319 @@
+package master.neo4j;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import master.neo4j.Neo4jApp.Labels;
+import master.neo4j.Neo4jApp.RelTypes;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Label;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+/**
+ * Populates an empty store straight through the batch insertion API, without
+ * transactions nor Cypher. Every node is deduplicated in memory with the same
+ * keys the MERGE statements of the loaders use, so the resulting graph is the
+ * same one the transactional loaders would build.
+ *
+ * The store can't be opened by any GraphDatabaseService while this runs.
+ *
+ * @author fran
+ */
+class BulkImporter {
+
+    private final BatchInserter inserter;
+
+    // Node ids by the properties their MERGE matches on
+    private final Map<String, Long> papersByTitle = new HashMap<>();
+    private final Map<String, Long> papersByTitleAndYear = new HashMap<>();
+    private final Map<String, Long> authors = new HashMap<>();
+    private final Map<String, Long> reviewers = new HashMap<>();
+    private final Map<String, Long> conferences = new HashMap<>();
+    private final Map<String, Long> journals = new HashMap<>();
+
+    // Relationships already created, one set of (start, end) pairs per type
+    private final PrimitiveLongSet[] relationships = new PrimitiveLongSet[RelTypes.values().length];
+
+    private long nodesCreated;
+    private long relationshipsCreated;
+
+    public BulkImporter(String storeDir) {
+        this.inserter = BatchInserters.inserter(storeDir);
+        SchemaBootstrap.createDeferred(inserter);
+        for (int i = 0; i < relationships.length; i++) {
+            relationships[i] = Primitive.longSet();
+        }
+    }
+
+    /**
+     * Tells whether there is already a store in the given directory. The bulk
+     * import only knows about the nodes it creates, so it must not be used on
+     * a populated database.
+     *
+     * @param storeDir
+     * @return
+     */
+    public static boolean storeExists(String storeDir) {
+        return new File(storeDir, "neostore").exists();
+    }
+
+    /**
+     * Tells which store is in the given directory: the time it was created and
+     * the random number Neo4j gave it, the first two records of the neostore
+     * file, 9 bytes each with an in use byte before the value. A store created
+     * again in the same directory gets others, even from the same files.
+     *
+     * @param storeDir
+     * @return creation time and random number
+     * @throws IOException if there is no store
+     */
+    public static long[] storeId(String storeDir) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(
+                new File(storeDir, "neostore")))) {
+            long[] id = new long[2];
+            for (int i = 0; i < id.length; i++) {
+                in.readByte();
+                id[i] = in.readLong();
+            }
+            return id;
+        }
+    }
+
+    public long getNodesCreated() {
+        return nodesCreated;
+    }
+
+    public long getRelationshipsCreated() {
+        return relationshipsCreated;
+    }
+
+    /**
+     * Imports the processed csv files found in path and shuts the inserter
+     * down, which flushes the store to disk.
+     *
+     * @param path directory with the processed_*.csv files
+     * @return rows imported by name of the original csv file
+     * @throws IOException
+     */
+    public Map<String, Long> importAll(String path) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Long> rows = new HashMap<>();
+        try {
+            rows.put("conferences.csv",
+                    importConferences(new File(path, "processed_conferences.csv")));
+            rows.put("journals.csv",
+                    importJournals(new File(path, "processed_journals.csv")));
+            rows.put("friendships.csv",
+                    importFriendships(new File(path, "processed_friendships.csv")));
+            relateConflicts();
+        } finally {
+            inserter.shutdown();
+        }
+        System.out.println("Bulk import finished in "
+                + (System.currentTimeMillis() - start) + " ms: "
+                + nodesCreated + " nodes and "
+                + relationshipsCreated + " relationships created\n");
+        return rows;
+    }
+
+    // Title,Authors,ConferenceName,Year,City,Reviewer
+    private long importConferences(File file) throws IOException {
+        long rows = 0;
+        try (CsvTokenizer csv = open(file)) {
+            while (csv.next()) {
+                rows++;
+                String[] cols = csv.toArray();
+                Long year = toInt(col(cols, 3));
+                Map<String, Object> props = new HashMap<>();
+                props.put("title", col(cols, 0));
+                props.put("year", year == null ? "none" : year);
+                long paper = conferencePaper(props);
+                for (String auth : authorsOf(col(cols, 1))) {
+                    relate(node(authors, Labels.Author, "surname", auth.trim()), paper, RelTypes.WROTE);
+                }
+                props = new HashMap<>();
+                props.put("name", col(cols, 2));
+                props.put("city", col(cols, 4));
+                if (year != null) {
+                    props.put("year", year);
+                }
+                long conference = node(conferences, Labels.Conference,
+                        col(cols, 2) + '\u0000' + col(cols, 4) + '\u0000' + year, props);
+                relate(conference, paper, RelTypes.HAS);
+                relate(node(reviewers, Labels.Reviewer, "surname", col(cols, 5)), paper, RelTypes.REVIEWED);
+            }
+        }
+        return rows;
+    }
+
+    // Title,Authors,JournalName,Volume,Reviewer
+    private long importJournals(File file) throws IOException {
+        long rows = 0;
+        try (CsvTokenizer csv = open(file)) {
+            while (csv.next()) {
+                rows++;
+                String[] cols = csv.toArray();
+                long paper = node(papersByTitle, Labels.Paper, "title", col(cols, 0));
+                Map<String, Object> props = new HashMap<>();
+                props.put("name", col(cols, 2));
+                props.put("volume", col(cols, 3));
+                relate(node(journals, Labels.Journal, col(cols, 2) + '\u0000' + col(cols, 3), props),
+                        paper, RelTypes.HAS);
+                for (String auth : authorsOf(col(cols, 1))) {
+                    relate(node(authors, Labels.Author, "surname", auth), paper, RelTypes.WROTE);
+                }
+                relate(node(reviewers, Labels.Reviewer, "surname", col(cols, 4)), paper, RelTypes.REVIEWED);
+            }
+        }
+        return rows;
+    }
+
+    // Reviewer,Author
+    private long importFriendships(File file) throws IOException {
+        long rows = 0;
+        try (CsvTokenizer csv = open(file)) {
+            while (csv.next()) {
+                rows++;
+                String[] cols = csv.toArray();
+                long reviewer = node(reviewers, Labels.Reviewer, "surname", col(cols, 0));
+                long author = node(authors, Labels.Author, "surname", col(cols, 1));
+                relate(author, reviewer, RelTypes.IS_FRIEND);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Adds the CONFLICTS relationships of the ConflictIndex from the ones
+     * already created: the papers of each reviewer are gathered once, and
+     * every friend of the reviewer is checked against the WROTE pairs of
+     * those papers.
+     */
+    private void relateConflicts() {
+        Map<Long, List<Long>> papersByReviewer = new HashMap<>();
+        PrimitiveLongIterator reviewed = relationships[RelTypes.REVIEWED.ordinal()].iterator();
+        while (reviewed.hasNext()) {
+            long pair = reviewed.next();
+            List<Long> papers = papersByReviewer.get(pair >>> 32);
+            if (papers == null) {
+                papers = new ArrayList<>();
+                papersByReviewer.put(pair >>> 32, papers);
+            }
+            papers.add(pair & 0xFFFFFFFFL);
+        }
+        Map<Long, String> surnames = new HashMap<>();
+        for (Map.Entry<String, Long> reviewer : reviewers.entrySet()) {
+            surnames.put(reviewer.getValue(), reviewer.getKey());
+        }
+        PrimitiveLongSet wrote = relationships[RelTypes.WROTE.ordinal()];
+        PrimitiveLongIterator friends = relationships[RelTypes.IS_FRIEND.ordinal()].iterator();
+        while (friends.hasNext()) {
+            long pair = friends.next();
+            long author = pair >>> 32;
+            List<Long> papers = papersByReviewer.get(pair & 0xFFFFFFFFL);
+            if (papers == null) {
+                continue;
+            }
+            for (long paper : papers) {
+                if (wrote.contains((author << 32) | paper)) {
+                    Map<String, Object> props = new HashMap<>();
+                    props.put("reviewer", surnames.get(pair & 0xFFFFFFFFL));
+                    // Friendships and papers are unique, so is each conflict
+                    inserter.createRelationship(author, paper, RelTypes.CONFLICTS, props);
+                    relationshipsCreated++;
+                }
+            }
+        }
+        ConflictIndex.mark(inserter);
+        nodesCreated++;
+    }
+
+    /**
+     * Conference papers are merged on title and year, but a journal row later
+     * merges on the title only and must find them too.
+     */
+    private long conferencePaper(Map<String, Object> props) {
+        String title = (String) props.get("title");
+        String key = title + '\u0000' + props.get("year");
+        Long id = papersByTitleAndYear.get(key);
+        if (id == null) {
+            id = create(Labels.Paper, props);
+            papersByTitleAndYear.put(key, id);
+            if (!papersByTitle.containsKey(title)) {
+                papersByTitle.put(title, id);
+            }
+        }
+        return id;
+    }
+
+    private long node(Map<String, Long> ids, Label label, String property, String value) {
+        Long id = ids.get(value);
+        if (id == null) {
+            Map<String, Object> props = new HashMap<>();
+            props.put(property, value);
+            id = create(label, props);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    private long node(Map<String, Long> ids, Label label, String key, Map<String, Object> props) {
+        Long id = ids.get(key);
+        if (id == null) {
+            id = create(label, props);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    private long create(Label label, Map<String, Object> props) {
+        // The store can't hold null values, MERGE would just leave them out
+        props.values().removeAll(Collections.singleton(null));
+        nodesCreated++;
+        return inserter.createNode(props, label);
+    }
+
+    private void relate(long start, long end, RelTypes type) {
+        if (start > Integer.MAX_VALUE || end > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many nodes for the bulk import");
+        }
+        if (relationships[type.ordinal()].add((start << 32) | end)) {
+            inserter.createRelationship(start, end, type, null);
+            relationshipsCreated++;
+        }
+    }
+
+    private static String[] authorsOf(String authors) {
+        return authors == null ? new String[0] : authors.split(";", -1);
+    }
+
+    private static String col(String[] cols, int i) {
+        return i < cols.length ? cols[i] : null;
+    }
+
+    private static Long toInt(String value) {
+        try {
+            return value == null ? null : Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static CsvTokenizer open(File file) throws IOException {
+        CsvTokenizer csv = new CsvTokenizer(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        // We skip the header
+        csv.next();
+        return csv;
+    }
+}
@@ -0,0 +1,513 @@
+package master.neo4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import master.neo4j.GraphProjection.Adjacency;
+import master.neo4j.Neo4jApp.RelTypes;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Collaboration statistics of the whole graph. For every author, the papers
+ * they wrote, how many distinct co-authors they have and the topK of them
+ * they share most papers with. For every conference and journal, its papers,
+ * the distinct authors and reviewers of those papers, how many of those
+ * reviewers are authors there too, by surname, and how many of the
+ * author-reviewer friendships are between its authors and reviewers.
+ *
+ * They are worked out on a GraphProjection, so the database is read once to
+ * build it, or not at all if it was mapped from its snapshot. The nodes are
+ * cut in ranges that a fork-join pool works on. Every worker thread counts in
+ * its own int arrays over all the nodes, which are stamped instead of
+ * cleared from one author or venue to the next, and results are kept in int
+ * arrays by node. Progress is reported every few seconds.
+ *
+ * @author fran
+ */
+class CoauthorAnalytics {
+
+    // Nodes a task goes through without splitting further
+    private static final int LEAF = 1024;
+
+    private static final int TWINS = 0;
+    private static final int AUTHORS = 1;
+    private static final int VENUES = 2;
+
+    private final GraphProjection graph;
+    private final int workers;
+    private final int topK;
+    private Metrics metrics = new Metrics();
+    private long progressInterval = 5;
+
+    // Author with the surname of each reviewer, -1 if none
+    private int[] twins;
+    // By author: papers, co-authors, and the topK co-authors, best first and
+    // -1 past the last, with the papers shared with each
+    private int[] papers;
+    private int[] coauthors;
+    private int[] top;
+    private int[] shared;
+    // By venue, besides papers
+    private int[] authors;
+    private int[] reviewers;
+    private int[] reviewerAuthors;
+    private int[] reviewerFriends;
+
+    private long authorCount;
+    private long venueCount;
+
+    // What is being done and how far it got, for the progress reports
+    private volatile String stage = "starting";
+    private volatile long total;
+    private final AtomicLong done = new AtomicLong();
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(graph.getNodes());
+        }
+    };
+
+    /**
+     * Counting arrays of one worker thread. A node is marked when its mark
+     * is the current stamp.
+     */
+    private static class Scratch {
+
+        final int[] marks;
+        final int[] otherMarks;
+        final int[] counts;
+        int[] touched = new int[64];
+        int touchedSize;
+        int stamp;
+
+        Scratch(int nodes) {
+            marks = new int[nodes];
+            otherMarks = new int[nodes];
+            counts = new int[nodes];
+        }
+
+        void next() {
+            stamp++;
+            touchedSize = 0;
+        }
+
+        void touch(int node) {
+            if (touchedSize == touched.length) {
+                touched = Arrays.copyOf(touched, touchedSize * 2);
+            }
+            touched[touchedSize++] = node;
+        }
+    }
+
+    /**
+     * Works out one stage for a range of nodes.
+     */
+    private class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int task;
+        private final int from;
+        private final int to;
+
+        RangeTask(int task, int from, int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(task, from, middle), new RangeTask(task, middle, to));
+                return;
+            }
+            Scratch s = scratch.get();
+            long visited = 0;
+            for (int node = from; node < to; node++) {
+                int label = graph.label(node);
+                if (task == TWINS && label == GraphProjection.REVIEWER) {
+                    twins[node] = graph.first(GraphProjection.AUTHOR, graph.key(node));
+                } else if (task == AUTHORS && label == GraphProjection.AUTHOR) {
+                    author(node, s);
+                    visited++;
+                } else if (task == VENUES && (label == GraphProjection.CONFERENCE
+                        || label == GraphProjection.JOURNAL)) {
+                    venue(node, s);
+                    visited++;
+                }
+            }
+            done.addAndGet(visited);
+        }
+    }
+
+    /**
+     * @param graph
+     * @param workers threads of the pool
+     * @param topK co-authors kept per author
+     */
+    public CoauthorAnalytics(GraphProjection graph, int workers, int topK) {
+        if (workers <= 0 || topK < 0) {
+            throw new IllegalArgumentException("Workers must be positive and topK not negative");
+        }
+        this.graph = graph;
+        this.workers = workers;
+        this.topK = topK;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param seconds between progress reports, 0 for none
+     */
+    public void setProgressInterval(long seconds) {
+        this.progressInterval = seconds;
+    }
+
+    /**
+     * Works out every statistic, on a pool of its own.
+     */
+    public void compute() {
+        int nodes = graph.getNodes();
+        twins = new int[nodes];
+        papers = new int[nodes];
+        coauthors = new int[nodes];
+        top = new int[nodes * topK];
+        shared = new int[nodes * topK];
+        authors = new int[nodes];
+        reviewers = new int[nodes];
+        reviewerAuthors = new int[nodes];
+        reviewerFriends = new int[nodes];
+        authorCount = 0;
+        venueCount = 0;
+        for (int node = 0; node < nodes; node++) {
+            int label = graph.label(node);
+            if (label == GraphProjection.AUTHOR) {
+                authorCount++;
+            } else if (label == GraphProjection.CONFERENCE || label == GraphProjection.JOURNAL) {
+                venueCount++;
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        ScheduledExecutorService reporter = startProgress();
+        try {
+            begin("reviewer surnames", 0);
+            pool.invoke(new RangeTask(TWINS, 0, nodes));
+            long start = System.nanoTime();
+            begin("co-authors", authorCount);
+            pool.invoke(new RangeTask(AUTHORS, 0, nodes));
+            metrics.timer("analytics.coauthors").update(System.nanoTime() - start);
+            start = System.nanoTime();
+            begin("venues", venueCount);
+            pool.invoke(new RangeTask(VENUES, 0, nodes));
+            metrics.timer("analytics.venues").update(System.nanoTime() - start);
+        } finally {
+            pool.shutdown();
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        metrics.count("authors.analyzed", authorCount);
+        metrics.count("venues.analyzed", venueCount);
+        begin("done", 0);
+    }
+
+    private void author(int author, Scratch s) {
+        Adjacency wrote = graph.outgoing(RelTypes.WROTE);
+        Adjacency writers = graph.incoming(RelTypes.WROTE);
+        s.next();
+        int written = 0;
+        for (int i = wrote.start(author); i < wrote.end(author); i++) {
+            int paper = wrote.target(i);
+            if (graph.label(paper) != GraphProjection.PAPER) {
+                continue;
+            }
+            written++;
+            for (int j = writers.start(paper); j < writers.end(paper); j++) {
+                int coauthor = writers.target(j);
+                if (coauthor == author || graph.label(coauthor) != GraphProjection.AUTHOR) {
+                    continue;
+                }
+                if (s.marks[coauthor] != s.stamp) {
+                    s.marks[coauthor] = s.stamp;
+                    s.counts[coauthor] = 0;
+                    s.touch(coauthor);
+                }
+                s.counts[coauthor]++;
+            }
+        }
+        papers[author] = written;
+        coauthors[author] = s.touchedSize;
+        selectTop(author, s);
+    }
+
+    /**
+     * Keeps the topK co-authors touched, by papers shared and then by node,
+     * inserting each one in the sorted slots of the author.
+     */
+    private void selectTop(int author, Scratch s) {
+        int base = author * topK;
+        int kept = 0;
+        for (int t = 0; t < s.touchedSize; t++) {
+            int coauthor = s.touched[t];
+            int count = s.counts[coauthor];
+            int i = kept < topK ? kept++ : topK;
+            while (i > 0 && better(count, coauthor, shared[base + i - 1], top[base + i - 1])) {
+                if (i < topK) {
+                    top[base + i] = top[base + i - 1];
+                    shared[base + i] = shared[base + i - 1];
+                }
+                i--;
+            }
+            if (i < topK) {
+                top[base + i] = coauthor;
+                shared[base + i] = count;
+            }
+        }
+        for (int i = kept; i < topK; i++) {
+            top[base + i] = -1;
+        }
+    }
+
+    private static boolean better(int count, int node, int otherCount, int other) {
+        return count > otherCount || (count == otherCount && node < other);
+    }
+
+    private void venue(int venue, Scratch s) {
+        Adjacency has = graph.outgoing(RelTypes.HAS);
+        Adjacency writers = graph.incoming(RelTypes.WROTE);
+        Adjacency reviewed = graph.incoming(RelTypes.REVIEWED);
+        Adjacency friends = graph.incoming(RelTypes.IS_FRIEND);
+        // marks are the authors of the venue, otherMarks its reviewers
+        s.next();
+        int venuePapers = 0;
+        int venueAuthors = 0;
+        for (int i = has.start(venue); i < has.end(venue); i++) {
+            int paper = has.target(i);
+            if (graph.label(paper) != GraphProjection.PAPER) {
+                continue;
+            }
+            venuePapers++;
+            for (int j = writers.start(paper); j < writers.end(paper); j++) {
+                int author = writers.target(j);
+                if (graph.label(author) == GraphProjection.AUTHOR && s.marks[author] != s.stamp) {
+                    s.marks[author] = s.stamp;
+                    venueAuthors++;
+                }
+            }
+            for (int j = reviewed.start(paper); j < reviewed.end(paper); j++) {
+                int reviewer = reviewed.target(j);
+                if (graph.label(reviewer) == GraphProjection.REVIEWER
+                        && s.otherMarks[reviewer] != s.stamp) {
+                    s.otherMarks[reviewer] = s.stamp;
+                    s.touch(reviewer);
+                }
+            }
+        }
+        int overlap = 0;
+        int friendships = 0;
+        for (int t = 0; t < s.touchedSize; t++) {
+            int reviewer = s.touched[t];
+            if (twins[reviewer] >= 0 && s.marks[twins[reviewer]] == s.stamp) {
+                overlap++;
+            }
+            for (int j = friends.start(reviewer); j < friends.end(reviewer); j++) {
+                if (s.marks[friends.target(j)] == s.stamp) {
+                    friendships++;
+                }
+            }
+        }
+        papers[venue] = venuePapers;
+        authors[venue] = venueAuthors;
+        reviewers[venue] = s.touchedSize;
+        reviewerAuthors[venue] = overlap;
+        reviewerFriends[venue] = friendships;
+    }
+
+    private void begin(String stage, long total) {
+        this.total = total;
+        done.set(0);
+        this.stage = stage;
+    }
+
+    private ScheduledExecutorService startProgress() {
+        if (progressInterval <= 0) {
+            return null;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "analytics-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(progress());
+            }
+        }, progressInterval, progressInterval, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    /**
+     * @return the stage being worked out and how far it got
+     */
+    public String progress() {
+        long all = total;
+        long count = done.get();
+        return "Analytics, " + stage + ": " + count + (all > 0
+                ? " of " + all + String.format(" (%.1f%%)", count * 100.0 / all) : "");
+    }
+
+    /**
+     * Streams the statistics to the sink, a coauthors result with a row per
+     * author and a venues result with a row per conference and journal.
+     * The top co-authors of an author are written as surname:papers pairs
+     * separated by semicolons.
+     *
+     * @param sink
+     * @throws IOException
+     */
+    public void write(ResultSink sink) throws IOException {
+        int nodes = graph.getNodes();
+        try (ResultSink.Result result = sink.open(false, "coauthors", false,
+                "author", "papers", "coauthors", "top")) {
+            for (int node = 0; node < nodes; node++) {
+                if (graph.label(node) == GraphProjection.AUTHOR) {
+                    result.row(graph.key(node), String.valueOf(papers[node]),
+                            String.valueOf(coauthors[node]), topOf(node));
+                }
+            }
+        }
+        try (ResultSink.Result result = sink.open(false, "venues", false,
+                "label", "venue", "volume", "papers", "authors", "reviewers",
+                "reviewer_authors", "reviewer_friends")) {
+            for (int node = 0; node < nodes; node++) {
+                int label = graph.label(node);
+                if (label == GraphProjection.CONFERENCE || label == GraphProjection.JOURNAL) {
+                    result.row(label == GraphProjection.JOURNAL ? "journal" : "conference",
+                            graph.key(node), graph.volume(node), String.valueOf(papers[node]),
+                            String.valueOf(authors[node]), String.valueOf(reviewers[node]),
+                            String.valueOf(reviewerAuthors[node]),
+                            String.valueOf(reviewerFriends[node]));
+                }
+            }
+        }
+    }
+
+    private String topOf(int author) {
+        StringBuilder out = new StringBuilder();
+        for (int i = author * topK; i < (author + 1) * topK && top[i] >= 0; i++) {
+            if (out.length() > 0) {
+                out.append(';');
+            }
+            out.append(graph.key(top[i])).append(':').append(shared[i]);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Sets the statistics as properties of the nodes, committing every
+     * batchSize nodes: papers, coauthors, topCoauthors and
+     * topCoauthorPapers on authors, and papers, authors, reviewers,
+     * reviewerAuthors and reviewerFriends on conferences and journals.
+     *
+     * @param db the database the projection was built from
+     * @param batchSize
+     */
+    public void writeBack(GraphDatabaseService db, int batchSize) {
+        long start = System.nanoTime();
+        ScheduledExecutorService reporter = startProgress();
+        begin("write back", authorCount + venueCount);
+        int nodes = graph.getNodes();
+        int pending = 0;
+        Transaction tx = db.beginTx();
+        try {
+            for (int node = 0; node < nodes; node++) {
+                int label = graph.label(node);
+                if (label == GraphProjection.AUTHOR) {
+                    setAuthor(db.getNodeById(graph.nodeId(node)), node);
+                } else if (label == GraphProjection.CONFERENCE || label == GraphProjection.JOURNAL) {
+                    setVenue(db.getNodeById(graph.nodeId(node)), node);
+                } else {
+                    continue;
+                }
+                if (++pending == batchSize) {
+                    tx.success();
+                    tx.close();
+                    tx = db.beginTx();
+                    done.addAndGet(pending);
+                    pending = 0;
+                }
+            }
+            tx.success();
+        } finally {
+            tx.close();
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        done.addAndGet(pending);
+        metrics.timer("analytics.write").update(System.nanoTime() - start);
+    }
+
+    private void setAuthor(Node node, int author) {
+        int kept = 0;
+        while (kept < topK && top[author * topK + kept] >= 0) {
+            kept++;
+        }
+        String[] names = new String[kept];
+        int[] counts = new int[kept];
+        for (int i = 0; i < kept; i++) {
+            names[i] = graph.key(top[author * topK + i]);
+            counts[i] = shared[author * topK + i];
+        }
+        node.setProperty("papers", papers[author]);
+        node.setProperty("coauthors", coauthors[author]);
+        node.setProperty("topCoauthors", names);
+        node.setProperty("topCoauthorPapers", counts);
+    }
+
+    private void setVenue(Node node, int venue) {
+        node.setProperty("papers", papers[venue]);
+        node.setProperty("authors", authors[venue]);
+        node.setProperty("reviewers", reviewers[venue]);
+        node.setProperty("reviewerAuthors", reviewerAuthors[venue]);
+        node.setProperty("reviewerFriends", reviewerFriends[venue]);
+    }
+
+    @Override
+    public String toString() {
+        long degrees = 0;
+        int maxDegree = 0;
+        long overlap = 0;
+        for (int node = 0; node < graph.getNodes(); node++) {
+            if (graph.label(node) == GraphProjection.AUTHOR) {
+                degrees += coauthors[node];
+                maxDegree = Math.max(maxDegree, coauthors[node]);
+            } else if (graph.label(node) == GraphProjection.CONFERENCE
+                    || graph.label(node) == GraphProjection.JOURNAL) {
+                overlap += reviewerAuthors[node];
+            }
+        }
+        return "Co-authorship analytics: " + authorCount + " authors, "
+                + String.format("%.2f", authorCount == 0 ? 0 : (double) degrees / authorCount)
+                + " co-authors on average, " + maxDegree + " at most; " + venueCount
+                + " venues, " + overlap + " venue reviewers who are authors there";
+    }
+}
@@ -0,0 +1,130 @@
+package master.neo4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import master.neo4j.Neo4jApp.Labels;
+import org.neo4j.cypher.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+/**
+ * The conflicts of interest query 4 looks for, materialized while loading:
+ * every author who is a friend of a reviewer of their own paper gets a
+ * CONFLICTS relationship to the paper, with the surname of the reviewer.
+ *
+ * (a:Author)-[:CONFLICTS {reviewer:r.surname}]->(p:Paper)
+ *
+ * The loaders keep it up to date in the transaction of each batch: the
+ * conference and journal loaders look for conflicts on the papers of their
+ * rows, and the friendship loader on the papers the new friend wrote and the
+ * reviewer reviewed. The bulk import works them out once all relationships
+ * are in. Query 4 then only expands from the journal to its papers and to
+ * their conflicts.
+ *
+ * A marker node tells that the store holds the index, so stores loaded
+ * before it existed get it built once when they are opened.
+ *
+ * @author fran
+ */
+class ConflictIndex {
+
+    // Appended to the conference and journal loaders, with the papers of
+    // their rows bound to p
+    static final String FROM_PAPERS
+            = "WITH DISTINCT p\n"
+            + "MATCH (p)<-[:WROTE]-(a:Author)-[:IS_FRIEND]->(r:Reviewer)-[:REVIEWED]->(p)\n"
+            + "MERGE (a)-[:CONFLICTS {reviewer:r.surname}]->(p)";
+
+    // Appended to the friendship loader, with the friends of its rows bound
+    // to a and rev
+    static final String FROM_FRIENDSHIPS
+            = "WITH DISTINCT a, rev\n"
+            + "MATCH (a)-[:WROTE]->(p:Paper)<-[:REVIEWED]-(rev)\n"
+            + "MERGE (a)-[:CONFLICTS {reviewer:rev.surname}]->(p)";
+
+    // Reviewers whose conflicts are built per transaction
+    private static final int REVIEWERS_PER_BATCH = 1000;
+
+    private static final String NEXT_REVIEWERS
+            = "MATCH (r:Reviewer) WHERE id(r) > {after}\n"
+            + "RETURN id(r) AS id ORDER BY id LIMIT {reviewers}";
+
+    private static final String BUILD
+            = "MATCH (r:Reviewer) WHERE id(r) IN {ids}\n"
+            + "MATCH (a:Author)-[:IS_FRIEND]->(r)-[:REVIEWED]->(p:Paper)<-[:WROTE]-(a)\n"
+            + "MERGE (a)-[:CONFLICTS {reviewer:r.surname}]->(p)";
+
+    private static final String MARKED = "MATCH (m:ConflictIndex) RETURN count(m) AS markers";
+
+    private ConflictIndex() {
+    }
+
+    /**
+     * Builds the index on a store that doesn't have it yet and marks the
+     * store. Reviewers are taken in id order, REVIEWERS_PER_BATCH at a time,
+     * and the conflicts of each batch are committed in a transaction of
+     * their own. The marker is only created once the last batch committed,
+     * so a build that is interrupted starts over on the next open, merging
+     * again the conflicts already there.
+     *
+     * @param db
+     * @param engine
+     */
+    public static void ensure(GraphDatabaseService db, ExecutionEngine engine) {
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Map<String, Object>> iter = engine.execute(MARKED).javaIterator();
+            if (((Number) iter.next().get("markers")).longValue() > 0) {
+                return;
+            }
+            tx.success();
+        }
+        long start = System.currentTimeMillis();
+        long conflicts = 0;
+        long after = -1;
+        List<Long> ids;
+        do {
+            try (Transaction tx = db.beginTx()) {
+                ids = nextReviewers(engine, after);
+                if (!ids.isEmpty()) {
+                    conflicts += engine.execute(BUILD, Collections.<String, Object>singletonMap(
+                            "ids", ids)).queryStatistics().relationshipsCreated();
+                    after = ids.get(ids.size() - 1);
+                }
+                tx.success();
+            }
+        } while (ids.size() == REVIEWERS_PER_BATCH);
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Labels.ConflictIndex);
+            tx.success();
+        }
+        System.out.println("Conflict index built in "
+                + (System.currentTimeMillis() - start) + " ms: " + conflicts + " conflicts\n");
+    }
+
+    private static List<Long> nextReviewers(ExecutionEngine engine, long after) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("after", after);
+        params.put("reviewers", REVIEWERS_PER_BATCH);
+        List<Long> ids = new ArrayList<>(REVIEWERS_PER_BATCH);
+        ResourceIterator<Map<String, Object>> iter = engine.execute(NEXT_REVIEWERS, params)
+                .javaIterator();
+        while (iter.hasNext()) {
+            ids.add(((Number) iter.next().get("id")).longValue());
+        }
+        return ids;
+    }
+
+    /**
+     * Marks a store written by the batch inserter, once its conflicts are in.
+     *
+     * @param inserter
+     */
+    public static void mark(BatchInserter inserter) {
+        inserter.createNode(Collections.<String, Object>emptyMap(), Labels.ConflictIndex);
+    }
+}
@@ -0,0 +1,283 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import org.neo4j.cypher.ExecutionEngine;
+import org.neo4j.cypher.QueryStatistics;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Loads a processed csv file into Neo4j in batches. Each batch of rows is sent
+ * as the {rows} parameter of an UNWIND query and committed in its own
+ * transaction, so the transaction state never grows beyond one batch no matter
+ * how big the file is.
+ *
+ * Rows are read either from a file already preprocessed, or from the raw file
+ * normalizing them on the way, in which case no processed file is written.
+ *
+ * @author fran
+ */
+class CsvBatchLoader {
+
+    private final GraphDatabaseService db;
+    private final ExecutionEngine engine;
+    private final int batchSize;
+    private final LoadCheckpoint checkpoint;
+    // Batches the streaming producer may have ready before it waits
+    private final int queueCapacity;
+    private final Metrics metrics;
+
+    // Marks the end of the batches in the queue
+    private static final List<Map<String, Object>> END = new ArrayList<>(0);
+
+    private BatchListener listener;
+    private BatchResolver resolver;
+
+    /**
+     * Told about every batch once it is committed.
+     */
+    interface BatchListener {
+
+        /**
+         * @param file name of the csv file the rows come from
+         * @param rows the rows of the batch, column name to value
+         */
+        void committed(String file, List<Map<String, Object>> rows);
+    }
+
+    /**
+     * Prepares every batch in its transaction, before its query runs.
+     */
+    interface BatchResolver {
+
+        /**
+         * May add values to the rows for the query to use.
+         *
+         * @param file name of the csv file the rows come from
+         * @param rows the rows of the batch, column name to value
+         * @return nodes created
+         */
+        long resolve(String file, List<Map<String, Object>> rows);
+
+        /**
+         * @param committed whether the transaction of the last batch resolved
+         * committed
+         */
+        void finished(boolean committed);
+    }
+
+    public CsvBatchLoader(GraphDatabaseService db, ExecutionEngine engine,
+            int batchSize, LoadCheckpoint checkpoint, int queueCapacity, Metrics metrics) {
+        if (batchSize <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Batch size and queue capacity must be positive");
+        }
+        this.db = db;
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.checkpoint = checkpoint;
+        this.queueCapacity = queueCapacity;
+        this.metrics = metrics;
+    }
+
+    public void setListener(BatchListener listener) {
+        this.listener = listener;
+    }
+
+    public void setResolver(BatchResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Loads the csv file with the given query. The query receives the rows of
+     * the batch as a list of maps, column name to value, in {rows}. Rows
+     * already committed by a previous run are skipped.
+     *
+     * @param file csv file with a header line
+     * @param query Cypher query starting with UNWIND {rows}
+     * @return number of rows of the file in the database
+     * @throws IOException
+     */
+    public long load(File file, String query) throws IOException {
+        String name = file.getName();
+        long skip = checkpoint.committedRows(name);
+        long rows = 0;
+        int batchNumber = 0;
+        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+        try (CsvTokenizer csv = new CsvTokenizer(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"))) {
+            if (!csv.next()) {
+                return 0;
+            }
+            String[] columns = csv.toArray();
+            if (skip > 0) {
+                System.out.println("Resuming " + name + " after " + skip + " committed rows");
+            }
+            while (csv.next()) {
+                if (rows < skip) {
+                    rows++;
+                    continue;
+                }
+                batch.add(toRow(columns, csv));
+                if (batch.size() == batchSize) {
+                    rows += commitBatch(name, ++batchNumber, batch, query, rows);
+                }
+            }
+            if (!batch.isEmpty()) {
+                rows += commitBatch(name, ++batchNumber, batch, query, rows);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Loads a raw csv file with the given query, normalizing its rows on the
+     * fly. A producer thread reads and normalizes the rows and hands them in
+     * batches to this thread through a bounded queue, so reading goes ahead
+     * of the writes by at most queueCapacity batches and nothing is written
+     * to disk but the graph. Rows already committed by a previous run are
+     * skipped.
+     *
+     * @param source range of a raw csv file with a header line
+     * @param query Cypher query starting with UNWIND {rows}
+     * @return number of rows of the range in the database
+     * @throws IOException
+     */
+    public long stream(final FileRange source, String query) throws IOException {
+        final String name = source.getFile().getName();
+        final long skip = checkpoint.committedRows(name);
+        final BlockingQueue<List<Map<String, Object>>> queue
+                = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread producer = new Thread("preprocess-" + name) {
+            @Override
+            public void run() {
+                try {
+                    produce(source, skip, queue);
+                } catch (InterruptedException e) {
+                    // The writer gave up, nobody is waiting for the end
+                    return;
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        if (skip > 0) {
+            System.out.println("Resuming " + name + " after " + skip + " committed rows");
+        }
+        long rows = skip;
+        int batchNumber = 0;
+        boolean done = false;
+        try {
+            List<Map<String, Object>> batch;
+            while ((batch = queue.take()) != END) {
+                rows += commitBatch(name, ++batchNumber, batch, query, rows);
+            }
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + name, e);
+        } finally {
+            if (!done) {
+                producer.interrupt();
+            }
+        }
+        if (failure.get() != null) {
+            throw new IOException("Can't read " + source, failure.get());
+        }
+        return rows;
+    }
+
+    private void produce(FileRange source, long skip,
+            BlockingQueue<List<Map<String, Object>>> queue)
+            throws IOException, InterruptedException {
+        String[] columns;
+        try (CsvTokenizer header = CsvTokenizer.openHeader(source.getFile())) {
+            columns = header.toArray();
+        }
+        try (CsvRecords csv = MappedCsvReader.open(source)) {
+            long rows = 0;
+            List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+            while (csv.next()) {
+                if (rows++ < skip) {
+                    continue;
+                }
+                CsvPreprocessor.normalize(csv);
+                batch.add(toRow(columns, csv));
+                if (batch.size() == batchSize) {
+                    // Blocks while the writer is queueCapacity batches behind
+                    queue.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                queue.put(batch);
+            }
+        }
+    }
+
+    private int commitBatch(String name, int batchNumber, List<Map<String, Object>> batch,
+            String query, long rowsBefore) throws IOException {
+        int size = batch.size();
+        Map<String, Object> params = new HashMap<>();
+        params.put("rows", batch);
+        long start = System.nanoTime();
+        QueryStatistics stats;
+        long resolved = 0;
+        try (Transaction tx = db.beginTx()) {
+            if (resolver != null) {
+                resolved = resolver.resolve(name, batch);
+            }
+            stats = engine.execute(query, params).queryStatistics();
+            tx.success();
+        } catch (RuntimeException e) {
+            if (resolver != null) {
+                resolver.finished(false);
+            }
+            throw e;
+        }
+        if (resolver != null) {
+            resolver.finished(true);
+        }
+        long elapsed = System.nanoTime() - start;
+        metrics.timer("load.batch").update(elapsed);
+        metrics.count("transactions.committed", 1);
+        metrics.count("rows.in", size);
+        metrics.count("nodes.created", resolved + stats.nodesCreated());
+        metrics.count("relationships.created", stats.relationshipsCreated());
+        // Only now the rows are durable, so we can move the checkpoint
+        checkpoint.commit(name, rowsBefore + size);
+        if (listener != null) {
+            listener.committed(name, batch);
+        }
+        System.out.println("Batch " + batchNumber + " of " + name + ": "
+                + size + " rows committed ("
+                + (long) (size / (Math.max(elapsed, 1) / 1e9)) + " rows/s)");
+        batch.clear();
+        return size;
+    }
+
+    private static Map<String, Object> toRow(String[] columns, CsvRecords csv) {
+        Map<String, Object> row = new HashMap<>(columns.length * 2);
+        for (int i = 0; i < columns.length; i++) {
+            // Missing trailing fields are null, as LOAD CSV does
+            row.put(columns[i], csv.get(i));
+        }
+        return row;
+    }
+}
@@ -0,0 +1,331 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Normalizes the csv files before they are loaded: every field is trimmed and
+ * turned to lowercase, and so is every author of the list in the second
+ * column. It works in a single pass over the input, normalizing the fields in
+ * the buffers of the reader and copying them to its own output buffer as
+ * UTF-8, without building intermediate Strings.
+ *
+ * Fields of a MappedCsvReader that are plain ASCII are normalized straight
+ * from the mapped bytes to the output, without being decoded at all.
+ *
+ * @author fran
+ */
+class CsvPreprocessor {
+
+    // Column holding the list of authors
+    private static final int AUTHORS = 1;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int pos;
+
+    public CsvPreprocessor(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Normalizes a whole file, read through a memory mapping. The header line
+     * is copied as it is.
+     *
+     * @param in
+     * @param out
+     * @return number of data rows written
+     * @throws IOException
+     */
+    public static long process(File in, File out) throws IOException {
+        try (CsvRecords csv = new MappedCsvReader(FileRange.whole(in));
+                OutputStream stream = new FileOutputStream(out)) {
+            return new CsvPreprocessor(stream).process(csv);
+        }
+    }
+
+    /**
+     * Normalizes the csv read from in. The header line is copied as it is.
+     *
+     * @param in
+     * @return number of data rows written
+     * @throws IOException
+     */
+    public long process(Reader in) throws IOException {
+        return process(new CsvTokenizer(in));
+    }
+
+    /**
+     * Normalizes the records read from csv. The first one is the header and
+     * is copied as it is.
+     *
+     * @param csv
+     * @return number of data rows written
+     * @throws IOException
+     */
+    public long process(CsvRecords csv) throws IOException {
+        if (csv.next()) {
+            writeHeader(csv);
+        }
+        return processRows(csv);
+    }
+
+    /**
+     * Normalizes csv data rows without header, as found in the middle of a
+     * file.
+     *
+     * @param in
+     * @return number of data rows written
+     * @throws IOException
+     */
+    public long processRows(Reader in) throws IOException {
+        return processRows(new CsvTokenizer(in));
+    }
+
+    /**
+     * Normalizes the records read from csv, all of them data rows.
+     *
+     * @param csv
+     * @return number of data rows written
+     * @throws IOException
+     */
+    public long processRows(CsvRecords csv) throws IOException {
+        long rows = 0;
+        while (csv.next()) {
+            writeRow(csv);
+            rows++;
+        }
+        flush();
+        return rows;
+    }
+
+    /**
+     * Writes the current record of the reader as it is.
+     *
+     * @param tokenizer
+     * @throws IOException
+     */
+    public void writeHeader(CsvRecords tokenizer) throws IOException {
+        for (int i = 0; i < tokenizer.fieldCount(); i++) {
+            if (i > 0) {
+                put(',');
+            }
+            StringBuilder field = tokenizer.field(i);
+            writeField(field, 0, field.length());
+        }
+        put('\n');
+    }
+
+    /**
+     * Writes the current record of the reader normalized. Its fields are
+     * normalized in place.
+     *
+     * @param tokenizer
+     * @throws IOException
+     */
+    public void writeRow(CsvRecords tokenizer) throws IOException {
+        MappedCsvReader mapped = tokenizer instanceof MappedCsvReader
+                ? (MappedCsvReader) tokenizer : null;
+        for (int i = 0; i < tokenizer.fieldCount(); i++) {
+            if (i > 0) {
+                put(',');
+            }
+            if (mapped != null && mapped.isPlainAscii(i)) {
+                writeAscii(mapped.window(), mapped.fieldStart(i), mapped.fieldEnd(i), i == AUTHORS);
+                continue;
+            }
+            StringBuilder field = tokenizer.field(i);
+            normalize(i, field);
+            writeField(field, 0, field.length());
+        }
+        put('\n');
+    }
+
+    /**
+     * Normalizes in place every field of the current record of the reader:
+     * it is trimmed and turned to lowercase, and so is every author of the
+     * authors column.
+     *
+     * @param tokenizer
+     */
+    public static void normalize(CsvRecords tokenizer) {
+        for (int i = 0; i < tokenizer.fieldCount(); i++) {
+            normalize(i, tokenizer.field(i));
+        }
+    }
+
+    private static void normalize(int column, StringBuilder field) {
+        if (column == AUTHORS) {
+            normalizeAuthors(field);
+        } else {
+            int start = trimStart(field, 0, field.length());
+            int end = copyLowerCase(field, start, trimEnd(field, start, field.length()), 0);
+            field.setLength(end);
+        }
+    }
+
+    private static void normalizeAuthors(StringBuilder field) {
+        int length = field.length();
+        int written = 0;
+        int from = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || field.charAt(i) == ';') {
+                // We never write past what we have already read
+                if (from > 0) {
+                    field.setCharAt(written++, ';');
+                }
+                int start = trimStart(field, from, i);
+                written = copyLowerCase(field, start, trimEnd(field, start, i), written);
+                from = i + 1;
+            }
+        }
+        field.setLength(written);
+    }
+
+    /**
+     * Moves the chars [start, end) of the field to position to, in lowercase.
+     *
+     * @return position after the last char moved
+     */
+    private static int copyLowerCase(StringBuilder field, int start, int end, int to) {
+        for (int i = start; i < end; i++) {
+            field.setCharAt(to++, Character.toLowerCase(field.charAt(i)));
+        }
+        return to;
+    }
+
+    /**
+     * Writes the ASCII bytes [start, end) of the input normalized, the same
+     * way normalize does with chars. They hold no quotes, commas nor line
+     * breaks, so they never need quoting.
+     */
+    private void writeAscii(ByteBuffer in, int start, int end, boolean authors)
+            throws IOException {
+        if (!authors) {
+            writeLowerCase(in, start, end);
+            return;
+        }
+        int from = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || in.get(i) == ';') {
+                if (from > start) {
+                    put(';');
+                }
+                writeLowerCase(in, from, i);
+                from = i + 1;
+            }
+        }
+    }
+
+    private void writeLowerCase(ByteBuffer in, int start, int end) throws IOException {
+        while (start < end && in.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && in.get(end - 1) <= ' ') {
+            end--;
+        }
+        if (end - start > buffer.length - pos) {
+            drain();
+        }
+        for (int i = start; i < end; i++) {
+            byte b = in.get(i);
+            if (pos == buffer.length) {
+                drain();
+            }
+            buffer[pos++] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+    }
+
+    /**
+     * Hands whatever is buffered to the output.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    private void writeField(StringBuilder field, int start, int end) throws IOException {
+        boolean quote = needsQuotes(field, start, end);
+        if (quote) {
+            put('"');
+        }
+        for (int i = start; i < end; i++) {
+            char c = field.charAt(i);
+            if (c == '"' && quote) {
+                put('"');
+            }
+            if (c < 0x80) {
+                put(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(field.charAt(i + 1))) {
+                putCodePoint(Character.toCodePoint(c, field.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, as OutputStreamWriter does
+                put('?');
+            } else {
+                putCodePoint(c);
+            }
+        }
+        if (quote) {
+            put('"');
+        }
+    }
+
+    // UTF-8 bytes of a code point that is not ASCII
+    private void putCodePoint(int codePoint) throws IOException {
+        if (codePoint < 0x800) {
+            put(0xC0 | codePoint >> 6);
+        } else if (codePoint < 0x10000) {
+            put(0xE0 | codePoint >> 12);
+            put(0x80 | (codePoint >> 6 & 0x3F));
+        } else {
+            put(0xF0 | codePoint >> 18);
+            put(0x80 | (codePoint >> 12 & 0x3F));
+            put(0x80 | (codePoint >> 6 & 0x3F));
+        }
+        put(0x80 | (codePoint & 0x3F));
+    }
+
+    private void put(int b) throws IOException {
+        if (pos == buffer.length) {
+            drain();
+        }
+        buffer[pos++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, pos);
+        pos = 0;
+    }
+
+    private static boolean needsQuotes(StringBuilder field, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same bounds String.trim() would leave
+    private static int trimStart(StringBuilder field, int start, int end) {
+        while (start < end && field.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(StringBuilder field, int start, int end) {
+        while (end > start && field.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,46 @@
+package master.neo4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Records of a csv file read one at a time, with their fields in buffers
+ * that are reused from one record to the next.
+ *
+ * @author fran
+ */
+interface CsvRecords extends Closeable {
+
+    /**
+     * Reads the next record. Blank lines are skipped.
+     *
+     * @return false when there are no more records
+     * @throws IOException
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return number of fields of the current record
+     */
+    int fieldCount();
+
+    /**
+     * Gives direct access to the buffer of a field. It is only valid until
+     * the next call to next(), and can be modified in place.
+     *
+     * @param i
+     * @return
+     */
+    StringBuilder field(int i);
+
+    /**
+     * @param i
+     * @return the field as a String, or null if the record has no such field
+     */
+    String get(int i);
+
+    /**
+     * @return all the fields of the current record as Strings
+     */
+    String[] toArray();
+}
@@ -0,0 +1,159 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Streaming csv tokenizer. Records are read one at a time into field buffers
+ * that are reused from one record to the next, so reading a file allocates
+ * next to nothing besides the Strings the caller asks for.
+ *
+ * Fields may be quoted with double quotes, in which case they can hold commas,
+ * line breaks and doubled quotes. Blank lines are skipped.
+ *
+ * @author fran
+ */
+class CsvTokenizer implements CsvRecords {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+
+    private StringBuilder[] fields = new StringBuilder[8];
+    private int count;
+
+    public CsvTokenizer(Reader in) {
+        this.in = in;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new StringBuilder(64);
+        }
+    }
+
+    /**
+     * Opens a tokenizer on a csv file positioned on its header, which is the
+     * current record.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static CsvTokenizer openHeader(File file) throws IOException {
+        CsvTokenizer csv = new CsvTokenizer(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        csv.next();
+        return csv;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        do {
+            if (pos == limit && !fill()) {
+                count = 0;
+                return false;
+            }
+            readRecord();
+        } while (count == 1 && fields[0].length() == 0);
+        return true;
+    }
+
+    private void readRecord() throws IOException {
+        count = 0;
+        StringBuilder field = nextField();
+        boolean inQuotes = false;
+        while (pos < limit || fill()) {
+            char c = buffer[pos++];
+            if (inQuotes) {
+                if (c != '"') {
+                    field.append(c);
+                } else if ((pos < limit || fill()) && buffer[pos] == '"') {
+                    // A doubled quote is a literal one
+                    field.append('"');
+                    pos++;
+                } else {
+                    inQuotes = false;
+                }
+            } else if (c == ',') {
+                field = nextField();
+            } else if (c == '\n') {
+                return;
+            } else if (c == '\r') {
+                if ((pos < limit || fill()) && buffer[pos] == '\n') {
+                    pos++;
+                }
+                return;
+            } else if (c == '"' && field.length() == 0) {
+                inQuotes = true;
+            } else {
+                // We copy the run of plain characters in one go
+                int start = pos - 1;
+                while (pos < limit && !isSpecial(buffer[pos])) {
+                    pos++;
+                }
+                field.append(buffer, start, pos - start);
+            }
+        }
+    }
+
+    private static boolean isSpecial(char c) {
+        return c == ',' || c == '\n' || c == '\r' || c == '"';
+    }
+
+    private StringBuilder nextField() {
+        if (count == fields.length) {
+            StringBuilder[] grown = new StringBuilder[fields.length * 2];
+            System.arraycopy(fields, 0, grown, 0, fields.length);
+            for (int i = fields.length; i < grown.length; i++) {
+                grown[i] = new StringBuilder(64);
+            }
+            fields = grown;
+        }
+        StringBuilder field = fields[count++];
+        field.setLength(0);
+        return field;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    @Override
+    public int fieldCount() {
+        return count;
+    }
+
+    @Override
+    public StringBuilder field(int i) {
+        return fields[i];
+    }
+
+    @Override
+    public String get(int i) {
+        return i < count ? fields[i].toString() : null;
+    }
+
+    @Override
+    public String[] toArray() {
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = fields[i].toString();
+        }
+        return values;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,317 @@
+package master.neo4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Writes conferences.csv, journals.csv and friendships.csv with the headers
+ * populate expects, for any number of papers.
+ *
+ * The data is skewed the way bibliographic data is: the number of authors of
+ * a paper, how many papers each author writes, how many papers each venue
+ * has and reviewer gets, and how many friends reviewers have all follow Zipf
+ * distributions. Names, titles and spacing are as untidy as in the original
+ * files, so the preprocessing has work to do.
+ *
+ * Each file is written in chunks of rows on a fork-join pool, each chunk to
+ * its own part file which are then concatenated in order. A chunk draws from
+ * a Random seeded from the seed and its position alone, so the same seed
+ * gives the same files whatever the number of workers. Nothing but the
+ * writer buffers is held in memory.
+ *
+ * Usage: DatasetGenerator outputDir papers [seed] [workers]
+ *
+ * @author fran
+ */
+public class DatasetGenerator {
+
+    // Rows written by each task
+    private static final int CHUNK = 50000;
+    // Share of the papers that go to conferences, the rest go to journals
+    private static final double CONFERENCE_SHARE = 0.6;
+    private static final int MAX_AUTHORS = 12;
+    private static final int MAX_FRIENDS = 50;
+    private static final int FIRST_YEAR = 1990;
+    private static final int YEARS = 30;
+    private static final int VOLUMES = 40;
+    private static final int CITIES = 500;
+
+    private static final String[] CONSONANTS = {"b", "c", "d", "f", "g", "l", "m", "n",
+        "p", "r", "s", "t", "v", "z", "ch", "br"};
+    private static final String[] VOWELS = {"a", "e", "i", "o", "u"};
+    private static final String[] WORDS = {"scalable", "distributed", "replication",
+        "graph", "streaming", "transactional", "elastic", "consistent", "query",
+        "processing", "storage", "network", "embedding", "privacy", "sensing", "cloud",
+        "cache", "recovery", "load", "balancing", "for", "of", "in", "systems", "data",
+        "analysis", "evaluation", "engine", "framework", "model"};
+
+    private final long papers;
+    private final long seed;
+    private final int workers;
+    private final int authors;
+    private final int reviewers;
+    private final ZipfSampler authorsPerPaper = new ZipfSampler(MAX_AUTHORS, 1.3);
+    private final ZipfSampler friendsPerReviewer = new ZipfSampler(MAX_FRIENDS, 1.0);
+    private final ZipfSampler authorRank;
+    private final ZipfSampler reviewerRank;
+    private final ZipfSampler conferenceRank;
+    private final ZipfSampler journalRank;
+
+    /**
+     * @param papers papers in conferences.csv and journals.csv together
+     * @param seed
+     * @param workers threads writing the files
+     */
+    public DatasetGenerator(long papers, long seed, int workers) {
+        if (papers <= 0 || workers <= 0) {
+            throw new IllegalArgumentException("Papers and workers must be positive");
+        }
+        this.papers = papers;
+        this.seed = seed;
+        this.workers = workers;
+        // Around two papers per author and two hundred per reviewer
+        this.authors = (int) Math.min(Integer.MAX_VALUE, Math.max(100, papers / 2));
+        this.reviewers = (int) Math.max(10, papers / 200);
+        this.authorRank = new ZipfSampler(authors, 1.1);
+        this.reviewerRank = new ZipfSampler(reviewers, 0.7);
+        this.conferenceRank = new ZipfSampler((int) Math.max(10, papers / 500), 0.8);
+        this.journalRank = new ZipfSampler((int) Math.max(10, papers / 1000), 0.8);
+    }
+
+    /**
+     * Writes the three files into dir, replacing them if they exist.
+     *
+     * @param dir
+     * @throws IOException
+     */
+    public void generate(File dir) throws IOException {
+        long conferencePapers = (long) (papers * CONFERENCE_SHARE);
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            write(pool, new File(dir, "conferences.csv"),
+                    "Title,Authors,ConferenceName,Year,City,Reviewer", 0, 0, conferencePapers);
+            write(pool, new File(dir, "journals.csv"),
+                    "Title,Authors,JournalName,Volume,Reviewer", 1, conferencePapers, papers);
+            write(pool, new File(dir, "friendships.csv"),
+                    "Reviewer,Author", 2, 0, reviewers);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the rows [from, to) of one of the files, a paper or a reviewer
+     * each.
+     */
+    private void write(ForkJoinPool pool, File output, String header, int file,
+            long from, long to) throws IOException {
+        long start = System.currentTimeMillis();
+        final List<ChunkTask> chunks = new ArrayList<>();
+        for (long first = from; first < to; first += CHUNK) {
+            chunks.add(new ChunkTask(file, first, Math.min(first + CHUNK, to),
+                    new File(output.getPath() + ".part" + chunks.size())));
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(output), "UTF-8")) {
+            w.write(header + "\n");
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(chunks);
+            }
+        });
+        long rows = 0;
+        try (FileChannel out = new FileOutputStream(output, true).getChannel()) {
+            for (ChunkTask chunk : chunks) {
+                rows += chunk.rows;
+                try (FileChannel in = new FileInputStream(chunk.part).getChannel()) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                if (!chunk.part.delete()) {
+                    System.err.println("Part file " + chunk.part + " could not be deleted");
+                }
+            }
+        }
+        System.out.println(output.getName() + ": " + rows + " rows, "
+                + output.length() / (1024 * 1024) + " MB written in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes the rows [first, last) of a file into a part file.
+     */
+    private class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int file;
+        private final long first;
+        private final long last;
+        private final File part;
+        private long rows;
+
+        ChunkTask(int file, long first, long last, File part) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+            this.part = part;
+        }
+
+        @Override
+        protected void compute() {
+            Random random = new Random(mix(seed + mix(file * 0x100000000L + first)));
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(part), "UTF-8"), 64 * 1024)) {
+                for (long i = first; i < last; i++) {
+                    if (file == 0) {
+                        writeConferencePaper(w, random, i);
+                        rows++;
+                    } else if (file == 1) {
+                        writeJournalPaper(w, random, i);
+                        rows++;
+                    } else {
+                        rows += writeFriends(w, random, (int) i);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException("Can't write " + part, ex);
+            }
+        }
+    }
+
+    // Title,Authors,ConferenceName,Year,City,Reviewer
+    private void writeConferencePaper(Writer w, Random random, long paper) throws IOException {
+        writeTitle(w, random, paper);
+        w.write(',');
+        writeAuthors(w, random);
+        int conference = conferenceRank.sample(random);
+        int year = FIRST_YEAR + random.nextInt(YEARS);
+        // Each edition of a conference is held in one city
+        int city = (int) ((mix(conference * 64L + year) >>> 1) % CITIES);
+        w.write(",CONF" + conference + "," + year + "," + pad(random, capitalize(name(city)))
+                + "," + capitalize(name(reviewerRank.sample(random))) + "\n");
+    }
+
+    // Title,Authors,JournalName,Volume,Reviewer
+    private void writeJournalPaper(Writer w, Random random, long paper) throws IOException {
+        writeTitle(w, random, paper);
+        w.write(',');
+        writeAuthors(w, random);
+        w.write(",Journal " + capitalize(name(journalRank.sample(random))) + ","
+                + (1 + random.nextInt(VOLUMES)) + ","
+                + pad(random, capitalize(name(reviewerRank.sample(random)))) + "\n");
+    }
+
+    /**
+     * Reviewer,Author. The most productive authors are also the ones with more
+     * friends.
+     *
+     * @return rows written
+     */
+    private int writeFriends(Writer w, Random random, int reviewer) throws IOException {
+        int friends = friendsPerReviewer.sample(random);
+        Set<Integer> written = new HashSet<>();
+        String name = pad(random, capitalize(name(reviewer + 1)));
+        for (int i = 0; i < friends; i++) {
+            int author = authorRank.sample(random);
+            if (written.add(author)) {
+                w.write(name + "," + capitalize(name(author)) + "\n");
+            }
+        }
+        return written.size();
+    }
+
+    // Every title ends with the paper number, so that none is repeated
+    private static void writeTitle(Writer w, Random random, long paper) throws IOException {
+        int words = 3 + random.nextInt(6);
+        for (int i = 0; i < words; i++) {
+            w.write(capitalize(WORDS[random.nextInt(WORDS.length)]));
+            w.write(' ');
+        }
+        w.write(Long.toString(paper));
+    }
+
+    private void writeAuthors(Writer w, Random random) throws IOException {
+        int count = authorsPerPaper.sample(random);
+        Set<Integer> written = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            int author = authorRank.sample(random);
+            if (written.add(author)) {
+                if (written.size() > 1) {
+                    w.write(random.nextBoolean() ? ";" : "; ");
+                }
+                w.write(capitalize(name(author)));
+            }
+        }
+    }
+
+    /**
+     * A pronounceable name for a number, made of two letter syllables, so
+     * that different numbers always get different names.
+     *
+     * @param id
+     * @return
+     */
+    static String name(long id) {
+        int syllables = CONSONANTS.length * VOWELS.length;
+        StringBuilder name = new StringBuilder();
+        // At least two syllables
+        long n = id + syllables;
+        while (n > 0) {
+            int syllable = (int) (n % syllables);
+            name.append(CONSONANTS[syllable / VOWELS.length]).append(VOWELS[syllable % VOWELS.length]);
+            n /= syllables;
+        }
+        return name.toString();
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    // Some fields come with blanks around them, as in the original files
+    private static String pad(Random random, String field) {
+        return random.nextInt(10) == 0 ? " " + field + " " : field;
+    }
+
+    // SplitMix64 finalizer, so that close seeds give unrelated Randoms
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DatasetGenerator outputDir papers [seed] [workers]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir.getAbsolutePath());
+        }
+        long papers = Long.parseLong(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        int workers = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+        new DatasetGenerator(papers, seed, workers).generate(dir);
+    }
+}
@@ -0,0 +1,259 @@
+package master.neo4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import master.neo4j.Neo4jApp.Labels;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+
+/**
+ * Node ids of the authors and reviewers in the graph by their normalized
+ * surname, shared by the loaders of the three files, so that each name is
+ * merged once and every later row finds its node by id.
+ *
+ * Before the query of a batch runs, in its transaction, every author and
+ * reviewer of its rows is looked up here. A name that is not here is looked
+ * up in the store, which may have it from an earlier run, and created if it
+ * is not there either. The ids are added to the rows, as AuthorIds and
+ * ReviewerId for papers and as AuthorId and ReviewerId for friendships, and
+ * the queries match their nodes by id instead of merging them.
+ *
+ * The names resolved by a batch are only kept once the batch commits, so
+ * that a batch that fails leaves no ids of nodes that were never written.
+ * Names are held in open addressing tables of Strings and primitive ids,
+ * without entry objects nor boxed values.
+ *
+ * @author fran
+ */
+class EntityDictionary implements CsvBatchLoader.BatchResolver {
+
+    private final GraphDatabaseService db;
+    private final NameTable authors = new NameTable();
+    private final NameTable reviewers = new NameTable();
+    // Names resolved by the batch being committed, by label
+    private final Map<String, Long> pendingAuthors = new HashMap<>();
+    private final Map<String, Long> pendingReviewers = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long created;
+
+    /**
+     * Names and their ids, with linear probing.
+     */
+    static class NameTable {
+
+        // Bytes of a String object and of an array header, as a 64 bit VM
+        // with compressed references lays them out
+        private static final int STRING_BYTES = 24;
+        private static final int ARRAY_BYTES = 16;
+
+        private String[] names = new String[1024];
+        private long[] ids = new long[1024];
+        private int size;
+        private long nameBytes;
+
+        /**
+         * @param name
+         * @return the id of the name, or -1
+         */
+        long get(String name) {
+            int mask = names.length - 1;
+            for (int i = slot(name, mask); names[i] != null; i = (i + 1) & mask) {
+                if (names[i].equals(name)) {
+                    return ids[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String name, long id) {
+            if ((size + 1) * 4 > names.length * 3) {
+                grow();
+            }
+            int mask = names.length - 1;
+            int i = slot(name, mask);
+            while (names[i] != null) {
+                if (names[i].equals(name)) {
+                    ids[i] = id;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            names[i] = name;
+            ids[i] = id;
+            size++;
+            nameBytes += align(STRING_BYTES) + align(ARRAY_BYTES + bytesOf(name));
+        }
+
+        private void grow() {
+            String[] oldNames = names;
+            long[] oldIds = ids;
+            names = new String[oldNames.length * 2];
+            ids = new long[oldNames.length * 2];
+            int mask = names.length - 1;
+            for (int j = 0; j < oldNames.length; j++) {
+                if (oldNames[j] != null) {
+                    int i = slot(oldNames[j], mask);
+                    while (names[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    names[i] = oldNames[j];
+                    ids[i] = oldIds[j];
+                }
+            }
+        }
+
+        private static int slot(String name, int mask) {
+            int h = name.hashCode() * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        // Compact strings take a byte per char unless some char is not Latin-1
+        private static int bytesOf(String name) {
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) > 0xFF) {
+                    return name.length() * 2;
+                }
+            }
+            return name.length();
+        }
+
+        private static long align(long bytes) {
+            return (bytes + 7) & ~7L;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return estimated bytes of the tables and of the names they hold
+         */
+        long footprint() {
+            return 2 * ARRAY_BYTES + names.length * (4L + 8L) + nameBytes;
+        }
+    }
+
+    public EntityDictionary(GraphDatabaseService db) {
+        this.db = db;
+    }
+
+    /**
+     * Adds the ids of the authors and reviewers of the rows, creating those
+     * that are not in the graph. Called in the transaction of the batch.
+     */
+    @Override
+    public long resolve(String file, List<Map<String, Object>> rows) {
+        long before = created;
+        for (Map<String, Object> row : rows) {
+            if (file.endsWith("friendships.csv")) {
+                row.put("AuthorId", id(authors, pendingAuthors, Labels.Author, row, "Author"));
+                row.put("ReviewerId", id(reviewers, pendingReviewers, Labels.Reviewer, row, "Reviewer"));
+                continue;
+            }
+            Object names = row.get("Authors");
+            long[] ids = new long[0];
+            if (names != null) {
+                // As split does in Cypher, empty authors included
+                String[] split = ((String) names).split(";", -1);
+                ids = new long[split.length];
+                for (int i = 0; i < split.length; i++) {
+                    ids[i] = id(authors, pendingAuthors, Labels.Author, split[i].trim());
+                }
+            }
+            row.put("AuthorIds", ids);
+            row.put("ReviewerId", id(reviewers, pendingReviewers, Labels.Reviewer, row, "Reviewer"));
+        }
+        return created - before;
+    }
+
+    private long id(NameTable table, Map<String, Long> pending, Label label,
+            Map<String, Object> row, String column) {
+        Object name = row.get(column);
+        if (name == null) {
+            // MERGE can't match a null surname either
+            throw new IllegalArgumentException("Row without " + column + ": " + row);
+        }
+        return id(table, pending, label, (String) name);
+    }
+
+    private long id(NameTable table, Map<String, Long> pending, Label label, String name) {
+        long id = table.get(name);
+        if (id >= 0) {
+            hits++;
+            return id;
+        }
+        Long resolved = pending.get(name);
+        if (resolved != null) {
+            hits++;
+            return resolved;
+        }
+        misses++;
+        try (ResourceIterator<Node> found = db.findNodesByLabelAndProperty(
+                label, "surname", name).iterator()) {
+            if (found.hasNext()) {
+                id = found.next().getId();
+            } else {
+                Node node = db.createNode(label);
+                node.setProperty("surname", name);
+                id = node.getId();
+                created++;
+            }
+        }
+        pending.put(name, id);
+        return id;
+    }
+
+    /**
+     * Keeps the names resolved by the batch if it committed, or forgets them.
+     */
+    @Override
+    public void finished(boolean committed) {
+        if (committed) {
+            for (Map.Entry<String, Long> author : pendingAuthors.entrySet()) {
+                authors.put(author.getKey(), author.getValue());
+            }
+            for (Map.Entry<String, Long> reviewer : pendingReviewers.entrySet()) {
+                reviewers.put(reviewer.getKey(), reviewer.getValue());
+            }
+        }
+        pendingAuthors.clear();
+        pendingReviewers.clear();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return fraction of the lookups answered without going to the store,
+     * 0 if none
+     */
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return estimated bytes the dictionary takes
+     */
+    public long getFootprint() {
+        return authors.footprint() + reviewers.footprint();
+    }
+
+    @Override
+    public String toString() {
+        return "Entity dictionary: " + authors.size() + " authors, " + reviewers.size()
+                + " reviewers, " + hits + " hits, " + misses + " misses ("
+                + String.format("%.1f", getHitRatio() * 100) + "% hit ratio), "
+                + created + " nodes created, ~" + getFootprint() / 1024 + " KB";
+    }
+}
@@ -0,0 +1,51 @@
+package master.neo4j;
+
+import java.io.File;
+
+/**
+ * The bytes [start, end) of a csv file that are to be ingested. The header
+ * line is always read from the beginning of the file, whatever the start.
+ *
+ * @author fran
+ */
+class FileRange {
+
+    private final File file;
+    private final long start;
+    private final long end;
+
+    public FileRange(File file, long start, long end) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @param file
+     * @return a range with the whole file as it is now
+     */
+    public static FileRange whole(File file) {
+        return new FileRange(file, 0, file.length());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public boolean isEmpty() {
+        return start >= end;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + "[" + start + ", " + end + ")";
+    }
+}
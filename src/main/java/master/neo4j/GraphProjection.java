@@ -0,0 +1,711 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import master.neo4j.Neo4jApp.Labels;
+import master.neo4j.Neo4jApp.RelTypes;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIntMap;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Read-only copy of the graph the four queries walk, held outside the Java
+ * heap in compressed sparse row form, so that the queries run on int arrays
+ * instead of going through the record store on every hop.
+ *
+ * Papers, authors, reviewers, conferences and journals are numbered from 0.
+ * For every relationship type of RelTypes and every direction, the
+ * neighbours of node n are targets[offsets[n]] to targets[offsets[n + 1]].
+ * Each node keeps its id in the database and the property it is looked up
+ * by, title, surname or name, as UTF-8, and journals their volume too. An
+ * open addressing table finds the nodes of a label by that property.
+ *
+ * Everything is in direct buffers, one per array, which are written as they
+ * are to a snapshot file. Loading the snapshot maps it, so a restart doesn't
+ * rebuild nor copy anything. The snapshot holds the fingerprint of the
+ * store and the ingestion state it was built at, and is only loaded while it
+ * still matches; the projection doesn't see later changes to the database.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize, the maximum heap by
+ * default.
+ *
+ * @author fran
+ */
+class GraphProjection {
+
+    private static final int MAGIC = 0x4E344A50;
+    private static final int VERSION = 2;
+
+    // Labels projected, by the code the labels section keeps for each node,
+    // and the property each one is looked up by
+    private static final Labels[] LABELS = {Labels.Paper, Labels.Author, Labels.Reviewer,
+        Labels.Conference, Labels.Journal};
+    private static final String[] KEYS = {"title", "surname", "surname", "name", "name"};
+    static final int PAPER = 0;
+    static final int AUTHOR = 1;
+    static final int REVIEWER = 2;
+    static final int CONFERENCE = 3;
+    static final int JOURNAL = 4;
+
+    private static final RelTypes[] TYPES = RelTypes.values();
+    // Sections before the four of each relationship type
+    private static final int NODE_SECTIONS = 7;
+
+    private final long fingerprint;
+    private final int nodes;
+    private final long relationships;
+    private final ByteBuffer labels;
+    private final Strings keys;
+    private final Strings volumes;
+    private final IntBuffer index;
+    private final LongBuffer ids;
+    private final Adjacency[] outgoing = new Adjacency[TYPES.length];
+    private final Adjacency[] incoming = new Adjacency[TYPES.length];
+    // Every buffer, in the order of the snapshot
+    private final ByteBuffer[] sections;
+
+    /**
+     * Strings of every node, as UTF-8.
+     */
+    static class Strings {
+
+        private final IntBuffer offsets;
+        private final ByteBuffer bytes;
+
+        Strings(ByteBuffer offsets, ByteBuffer bytes) {
+            this.offsets = offsets.asIntBuffer();
+            this.bytes = bytes;
+        }
+
+        String get(int node) {
+            int start = offsets.get(node);
+            byte[] value = new byte[offsets.get(node + 1) - start];
+            // Absolute reads, so that queries can share the buffer
+            ByteBuffer view = bytes.duplicate();
+            view.position(start);
+            view.get(value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+
+        boolean equals(int node, byte[] value) {
+            int start = offsets.get(node);
+            if (offsets.get(node + 1) - start != value.length) {
+                return false;
+            }
+            for (int i = 0; i < value.length; i++) {
+                if (bytes.get(start + i) != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int hash(int node, int label) {
+            int hash = label;
+            for (int i = offsets.get(node); i < offsets.get(node + 1); i++) {
+                hash = 31 * hash + bytes.get(i);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Relationships of one type and direction.
+     */
+    static class Adjacency {
+
+        private final IntBuffer offsets;
+        private final IntBuffer targets;
+
+        Adjacency(ByteBuffer offsets, ByteBuffer targets) {
+            this.offsets = offsets.asIntBuffer();
+            this.targets = targets.asIntBuffer();
+        }
+
+        int start(int node) {
+            return offsets.get(node);
+        }
+
+        int end(int node) {
+            return offsets.get(node + 1);
+        }
+
+        int target(int i) {
+            return targets.get(i);
+        }
+
+        int size() {
+            return targets.capacity();
+        }
+    }
+
+    /**
+     * Growable array of ints, for the build.
+     */
+    private static class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Growable array of longs, for the build.
+     */
+    private static class LongList {
+
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Growable array of bytes, for the build.
+     */
+    private static class ByteList {
+
+        private byte[] values = new byte[1024];
+        private int size;
+
+        void add(byte[] bytes) {
+            if (size + bytes.length > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + bytes.length, values.length * 2));
+            }
+            System.arraycopy(bytes, 0, values, size, bytes.length);
+            size += bytes.length;
+        }
+    }
+
+    private GraphProjection(long fingerprint, ByteBuffer[] sections) {
+        this.fingerprint = fingerprint;
+        this.sections = sections;
+        this.labels = sections[0];
+        this.nodes = labels.capacity();
+        this.keys = new Strings(sections[1], sections[2]);
+        this.volumes = new Strings(sections[3], sections[4]);
+        this.index = sections[5].asIntBuffer();
+        this.ids = sections[6].asLongBuffer();
+        long count = 0;
+        for (int t = 0; t < TYPES.length; t++) {
+            int s = NODE_SECTIONS + 4 * t;
+            outgoing[t] = new Adjacency(sections[s], sections[s + 1]);
+            incoming[t] = new Adjacency(sections[s + 2], sections[s + 3]);
+            count += outgoing[t].size();
+        }
+        this.relationships = count;
+    }
+
+    /**
+     * Copies the graph into a new projection, in a single read transaction.
+     *
+     * @param db
+     * @param fingerprint of the store and ingestion state the graph is at
+     * @return
+     */
+    public static GraphProjection build(GraphDatabaseService db, long fingerprint) {
+        ByteBuffer[] sections = new ByteBuffer[NODE_SECTIONS + 4 * TYPES.length];
+        try (Transaction tx = db.beginTx()) {
+            GlobalGraphOperations graph = GlobalGraphOperations.at(db);
+            PrimitiveLongIntMap numbers = Primitive.longIntMap();
+            ByteList labelCodes = new ByteList();
+            LongList nodeIds = new LongList();
+            IntList keyOffsets = new IntList();
+            ByteList keyBytes = new ByteList();
+            IntList volumeOffsets = new IntList();
+            ByteList volumeBytes = new ByteList();
+            byte[] code = new byte[1];
+            for (Node node : graph.getAllNodes()) {
+                int label = labelOf(node);
+                if (label < 0) {
+                    continue;
+                }
+                numbers.put(node.getId(), keyOffsets.size);
+                nodeIds.add(node.getId());
+                code[0] = (byte) label;
+                labelCodes.add(code);
+                keyOffsets.add(keyBytes.size);
+                // As the queries print it
+                keyBytes.add(String.valueOf(node.getProperty(KEYS[label], null))
+                        .getBytes(StandardCharsets.UTF_8));
+                volumeOffsets.add(volumeBytes.size);
+                Object volume = label == JOURNAL ? node.getProperty("volume", null) : null;
+                if (volume instanceof String) {
+                    volumeBytes.add(((String) volume).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            keyOffsets.add(keyBytes.size);
+            volumeOffsets.add(volumeBytes.size);
+            int nodes = labelCodes.size;
+            sections[0] = toBuffer(labelCodes);
+            sections[1] = toBuffer(keyOffsets);
+            sections[2] = toBuffer(keyBytes);
+            sections[3] = toBuffer(volumeOffsets);
+            sections[4] = toBuffer(volumeBytes);
+            sections[5] = allocate(4L * tableSize(nodes));
+            sections[6] = allocate(8L * nodes);
+            sections[6].asLongBuffer().put(nodeIds.values, 0, nodes);
+
+            IntList[] from = new IntList[TYPES.length];
+            IntList[] to = new IntList[TYPES.length];
+            for (int t = 0; t < TYPES.length; t++) {
+                from[t] = new IntList();
+                to[t] = new IntList();
+            }
+            for (Relationship rel : graph.getAllRelationships()) {
+                int type = typeOf(rel);
+                int start = type < 0 ? -1 : numbers.get(rel.getStartNode().getId());
+                int end = start < 0 ? -1 : numbers.get(rel.getEndNode().getId());
+                if (end >= 0) {
+                    from[type].add(start);
+                    to[type].add(end);
+                }
+            }
+            for (int t = 0; t < TYPES.length; t++) {
+                int s = NODE_SECTIONS + 4 * t;
+                sort(nodes, from[t], to[t], sections, s);
+                sort(nodes, to[t], from[t], sections, s + 2);
+            }
+            tx.success();
+        }
+        GraphProjection projection = new GraphProjection(fingerprint, sections);
+        projection.fillIndex();
+        return projection;
+    }
+
+    // Slots hold node + 1, 0 is empty
+    private void fillIndex() {
+        int mask = index.capacity() - 1;
+        for (int node = 0; node < nodes; node++) {
+            int slot = mix(keys.hash(node, labels.get(node))) & mask;
+            while (index.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index.put(slot, node + 1);
+        }
+    }
+
+    // A power of two at least twice the nodes, so probes stay short
+    private static int tableSize(int nodes) {
+        return Integer.highestOneBit(Math.max(1, nodes) * 2 - 1) << 1;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int labelOf(Node node) {
+        for (int i = 0; i < LABELS.length; i++) {
+            if (node.hasLabel(LABELS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int typeOf(Relationship rel) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (rel.isType(TYPES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Groups the relationships by their from node, a counting sort into the
+     * offsets and targets sections at s and s + 1.
+     */
+    private static void sort(int nodes, IntList from, IntList to, ByteBuffer[] sections, int s) {
+        int[] next = new int[nodes + 1];
+        for (int i = 0; i < from.size; i++) {
+            next[from.values[i] + 1]++;
+        }
+        for (int n = 0; n < nodes; n++) {
+            next[n + 1] += next[n];
+        }
+        sections[s] = allocate(4L * (nodes + 1));
+        sections[s].asIntBuffer().put(next);
+        sections[s + 1] = allocate(4L * from.size);
+        IntBuffer targets = sections[s + 1].asIntBuffer();
+        for (int i = 0; i < from.size; i++) {
+            targets.put(next[from.values[i]]++, to.values[i]);
+        }
+    }
+
+    private static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Graph too big to project: " + bytes + " bytes array");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer toBuffer(IntList list) {
+        ByteBuffer buffer = allocate(4L * list.size);
+        buffer.asIntBuffer().put(list.values, 0, list.size);
+        return buffer;
+    }
+
+    private static ByteBuffer toBuffer(ByteList list) {
+        ByteBuffer buffer = allocate(list.size);
+        buffer.put(list.values, 0, list.size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Writes the projection to a snapshot file, replacing it only once it is
+     * complete.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (FileChannel out = new FileOutputStream(tmp).getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize());
+            header.putInt(MAGIC).putInt(VERSION)
+                    .put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0))
+                    .putLong(fingerprint).putInt(sections.length);
+            for (ByteBuffer section : sections) {
+                header.putLong(section.capacity());
+            }
+            header.flip();
+            writeFully(out, header);
+            for (ByteBuffer section : sections) {
+                ByteBuffer all = section.duplicate();
+                all.clear();
+                writeFully(out, all);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Can't write projection snapshot " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static int headerSize() {
+        return 21 + 8 * (NODE_SECTIONS + 4 * TYPES.length);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Maps a snapshot written by save.
+     *
+     * @param file
+     * @param fingerprint of the store and of its current ingestion state
+     * @return the projection, or null if there is no snapshot or it was taken
+     * at another ingestion state, by another version or on a platform of
+     * another byte order
+     * @throws IOException if the snapshot is not a complete one
+     */
+    public static GraphProjection load(File file, long fingerprint) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel in = new FileInputStream(file).getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize());
+            while (header.hasRemaining() && in.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < 8 || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a projection snapshot");
+            }
+            if (header.getInt() != VERSION) {
+                return null;
+            }
+            if (header.remaining() < headerSize() - 8) {
+                throw new IOException(file + " is truncated");
+            }
+            boolean little = header.get() == 1;
+            if (little != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+                    || header.getLong() != fingerprint) {
+                return null;
+            }
+            ByteBuffer[] sections = new ByteBuffer[header.getInt()];
+            if (sections.length != NODE_SECTIONS + 4 * TYPES.length) {
+                throw new IOException(file + " has " + sections.length + " sections");
+            }
+            long offset = headerSize();
+            long[] lengths = new long[sections.length];
+            for (int i = 0; i < sections.length; i++) {
+                lengths[i] = header.getLong();
+                offset += lengths[i];
+            }
+            if (offset != in.size()) {
+                throw new IOException(file + " is truncated");
+            }
+            offset = headerSize();
+            for (int i = 0; i < sections.length; i++) {
+                // Mappings outlive the channel
+                sections[i] = in.map(FileChannel.MapMode.READ_ONLY, offset, lengths[i])
+                        .order(ByteOrder.nativeOrder());
+                offset += lengths[i];
+            }
+            return new GraphProjection(fingerprint, sections);
+        }
+    }
+
+    /**
+     * Finds the nodes of a label by the property they are looked up by.
+     */
+    private IntList find(int label, String key) {
+        byte[] value = key.getBytes(StandardCharsets.UTF_8);
+        int hash = label;
+        for (byte b : value) {
+            hash = 31 * hash + b;
+        }
+        int mask = index.capacity() - 1;
+        IntList found = new IntList();
+        for (int slot = mix(hash) & mask; index.get(slot) != 0; slot = (slot + 1) & mask) {
+            int node = index.get(slot) - 1;
+            if (labels.get(node) == label && keys.equals(node, value)) {
+                found.add(node);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Runs one of the queries and writes its rows to the result, as
+     * Neo4jApp does with the database. It may be called from several threads
+     * at once.
+     *
+     * @param query Q1 to Q4
+     * @param params the parameters of the query, normalized
+     * @param result
+     * @param tags if not null, the tags query 4 depends on are added to it,
+     * see ResultCache
+     * @throws IOException
+     */
+    public void run(String query, String[] params, ResultSink.Result result, Set<String> tags)
+            throws IOException {
+        switch (query) {
+            case "Q1":
+                runQ1(params[0], result);
+                break;
+            case "Q2":
+                runQ2(params[0], result);
+                break;
+            case "Q3":
+                runQ3(params[0], result);
+                break;
+            case "Q4":
+                runQ4(params[0], String.valueOf(Integer.parseInt(params[1])), result, tags);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
+    }
+
+    // Authors and reviewers of the papers with the title
+    private void runQ1(String title, ResultSink.Result result) throws IOException {
+        Adjacency wrote = incoming[RelTypes.WROTE.ordinal()];
+        Adjacency reviewed = incoming[RelTypes.REVIEWED.ordinal()];
+        IntList papers = find(PAPER, title);
+        for (int k = 0; k < papers.size; k++) {
+            int paper = papers.values[k];
+            for (int i = wrote.start(paper); i < wrote.end(paper); i++) {
+                int author = wrote.target(i);
+                if (labels.get(author) != AUTHOR) {
+                    continue;
+                }
+                for (int j = reviewed.start(paper); j < reviewed.end(paper); j++) {
+                    int reviewer = reviewed.target(j);
+                    if (labels.get(reviewer) == REVIEWER) {
+                        result.row(keys.get(paper), keys.get(author), keys.get(reviewer));
+                    }
+                }
+            }
+        }
+    }
+
+    // Papers of the conferences with the name
+    private void runQ2(String name, ResultSink.Result result) throws IOException {
+        Adjacency has = outgoing[RelTypes.HAS.ordinal()];
+        IntList conferences = find(CONFERENCE, name);
+        for (int k = 0; k < conferences.size; k++) {
+            int conference = conferences.values[k];
+            for (int i = has.start(conference); i < has.end(conference); i++) {
+                int paper = has.target(i);
+                if (labels.get(paper) == PAPER) {
+                    result.row(keys.get(conference), keys.get(paper));
+                }
+            }
+        }
+    }
+
+    // Papers of the author with the surname
+    private void runQ3(String surname, ResultSink.Result result) throws IOException {
+        Adjacency wrote = outgoing[RelTypes.WROTE.ordinal()];
+        IntList authors = find(AUTHOR, surname);
+        for (int k = 0; k < authors.size; k++) {
+            int author = authors.values[k];
+            for (int i = wrote.start(author); i < wrote.end(author); i++) {
+                int paper = wrote.target(i);
+                if (labels.get(paper) == PAPER) {
+                    result.row(keys.get(author), keys.get(paper));
+                }
+            }
+        }
+    }
+
+    /**
+     * Authors who are friends of a reviewer of their own paper, for the
+     * papers of a journal volume, the same way NativeQuery4 walks the graph.
+     * The reviewers of a paper are few and contiguous, so they are scanned
+     * instead of hashed.
+     */
+    private void runQ4(String name, String volume, ResultSink.Result result, Set<String> tags)
+            throws IOException {
+        Adjacency has = outgoing[RelTypes.HAS.ordinal()];
+        Adjacency reviewed = incoming[RelTypes.REVIEWED.ordinal()];
+        Adjacency wrote = incoming[RelTypes.WROTE.ordinal()];
+        Adjacency friends = outgoing[RelTypes.IS_FRIEND.ordinal()];
+        byte[] volumeBytes = volume.getBytes(StandardCharsets.UTF_8);
+        IntList journals = find(JOURNAL, name);
+        for (int k = 0; k < journals.size; k++) {
+            int journal = journals.values[k];
+            if (!volumes.equals(journal, volumeBytes)) {
+                continue;
+            }
+            for (int i = has.start(journal); i < has.end(journal); i++) {
+                int paper = has.target(i);
+                if (labels.get(paper) != PAPER) {
+                    continue;
+                }
+                if (tags != null) {
+                    tags.add("paper|" + keys.get(paper));
+                }
+                for (int j = wrote.start(paper); j < wrote.end(paper); j++) {
+                    int author = wrote.target(j);
+                    if (labels.get(author) != AUTHOR) {
+                        continue;
+                    }
+                    if (tags != null) {
+                        tags.add("friend|" + keys.get(author));
+                    }
+                    for (int f = friends.start(author); f < friends.end(author); f++) {
+                        int friend = friends.target(f);
+                        if (labels.get(friend) == REVIEWER
+                                && reviewedBy(reviewed, paper, friend)) {
+                            result.row(keys.get(paper), keys.get(author), keys.get(friend));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean reviewedBy(Adjacency reviewed, int paper, int reviewer) {
+        for (int i = reviewed.start(paper); i < reviewed.end(paper); i++) {
+            if (reviewed.target(i) == reviewer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getNodes() {
+        return nodes;
+    }
+
+    int label(int node) {
+        return labels.get(node);
+    }
+
+    /**
+     * @param node
+     * @return the title, surname or name of the node
+     */
+    String key(int node) {
+        return keys.get(node);
+    }
+
+    /**
+     * @param node
+     * @return the volume of a journal, empty for other nodes
+     */
+    String volume(int node) {
+        return volumes.get(node);
+    }
+
+    /**
+     * @param node
+     * @return id of the node in the database
+     */
+    long nodeId(int node) {
+        return ids.get(node);
+    }
+
+    Adjacency outgoing(RelTypes type) {
+        return outgoing[type.ordinal()];
+    }
+
+    Adjacency incoming(RelTypes type) {
+        return incoming[type.ordinal()];
+    }
+
+    /**
+     * @param label
+     * @param key
+     * @return the first node of the label with the key, or -1
+     */
+    int first(int label, String key) {
+        IntList found = find(label, key);
+        return found.size == 0 ? -1 : found.values[0];
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return bytes of all the buffers, outside the heap
+     */
+    public long getFootprint() {
+        long bytes = 0;
+        for (ByteBuffer section : sections) {
+            bytes += section.capacity();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Graph projection: " + nodes + " nodes, " + relationships + " relationships, "
+                + String.format("%.1f", getFootprint() / (1024.0 * 1024.0)) + " MB off-heap";
+    }
+}
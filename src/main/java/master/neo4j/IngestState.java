@@ -0,0 +1,162 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers, for every csv file, up to which byte it has been ingested and a
+ * hash of its content up to there, so that later runs only ingest the rows
+ * appended since. If the content up to that byte changed, the file was
+ * rewritten and is ingested again from the beginning.
+ *
+ * The hash is a CRC32 of every byte before the offset, so that any change to
+ * the rows already ingested is caught, even one in the middle that keeps the
+ * size of the file. Planning therefore reads each file up to its offset, in
+ * one sequential pass of HASH_BLOCK bytes at a time.
+ *
+ * @author fran
+ */
+class IngestState {
+
+    private static final int HASH_BLOCK = 64 * 1024;
+
+    private final File file;
+    private final Properties state = new Properties();
+
+    public IngestState(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            try (InputStreamReader in = new InputStreamReader(
+                    new FileInputStream(file), "UTF-8")) {
+                state.load(in);
+            }
+        }
+    }
+
+    /**
+     * Works out which part of the csv file has not been ingested yet, and
+     * logs it.
+     *
+     * @param csv
+     * @return the range still to be ingested
+     * @throws IOException
+     */
+    public synchronized FileRange plan(File csv) throws IOException {
+        String name = csv.getName();
+        long size = csv.length();
+        String offset = state.getProperty(name + ".offset");
+        if (offset == null) {
+            System.out.println(name + ": first ingestion, " + size + " bytes");
+            return new FileRange(csv, 0, size);
+        }
+        long start = Long.parseLong(offset);
+        if (start > size || !hash(csv, start).equals(state.getProperty(name + ".hash"))) {
+            System.out.println(name + ": rewritten since the last run, full reload");
+            return new FileRange(csv, 0, size);
+        }
+        System.out.println(name + ": " + rowsIngested(name) + " rows skipped, "
+                + (size - start) + " new bytes to ingest");
+        return new FileRange(csv, start, size);
+    }
+
+    /**
+     * Records that the given range has been ingested, adding to the file the
+     * number of rows it held. It must only be called once all its rows are
+     * committed.
+     *
+     * @param range
+     * @param rows
+     * @throws IOException
+     */
+    public synchronized void record(FileRange range, long rows) throws IOException {
+        String name = range.getFile().getName();
+        long before = range.getStart() == 0 ? 0 : rowsIngested(name);
+        state.setProperty(name + ".offset", Long.toString(range.getEnd()));
+        state.setProperty(name + ".hash", hash(range.getFile(), range.getEnd()));
+        state.setProperty(name + ".rows", Long.toString(before + rows));
+        System.out.println(name + ": " + rows + " rows ingested, "
+                + (before + rows) + " in total");
+        store();
+    }
+
+    /**
+     * Forgets every file, so that they are all ingested from the beginning.
+     * Needed when the database is created again.
+     *
+     * @throws IOException
+     */
+    public synchronized void reset() throws IOException {
+        if (!state.isEmpty()) {
+            System.out.println("New database, the ingestion state is discarded\n");
+            state.clear();
+            store();
+        }
+    }
+
+    /**
+     * The state alone doesn't tell the store apart: a store created again
+     * from the same files records the same offsets, hashes and rows, but its
+     * nodes may have other ids. So the id of the store is hashed too.
+     *
+     * @param storeId the store the state is recorded for, see
+     * BulkImporter.storeId
+     * @return a hash of everything recorded and of the store, which changes
+     * whenever some rows are ingested or the store is created again
+     */
+    public synchronized long fingerprint(long[] storeId) {
+        CRC32 crc = new CRC32();
+        byte[] store = ("store=" + storeId[0] + ":" + storeId[1] + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        crc.update(store, 0, store.length);
+        for (String key : new TreeSet<>(state.stringPropertyNames())) {
+            byte[] entry = (key + "=" + state.getProperty(key) + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            crc.update(entry, 0, entry.length);
+        }
+        return crc.getValue();
+    }
+
+    private long rowsIngested(String name) {
+        String rows = state.getProperty(name + ".rows");
+        return rows == null ? 0 : Long.parseLong(rows);
+    }
+
+    private static String hash(File csv, long end) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[HASH_BLOCK];
+        try (FileInputStream in = new FileInputStream(csv)) {
+            long left = end;
+            while (left > 0) {
+                int read = in.read(block, 0, (int) Math.min(HASH_BLOCK, left));
+                if (read < 0) {
+                    throw new IOException(csv + " is shorter than " + end + " bytes");
+                }
+                crc.update(block, 0, read);
+                left -= read;
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private void store() throws IOException {
+        // Same as the load checkpoint, never leave it half written
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            state.store(out, "Offset, hash and rows ingested per csv file");
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Can't write ingestion state " + file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+
+/**
+ * Keeps track, in a small properties file, of how many rows of each csv file
+ * have already been committed to Neo4j. If the program dies in the middle of
+ * an ingestion, the next run can resume from the last committed batch instead
+ * of starting again.
+ *
+ * @author fran
+ */
+class LoadCheckpoint {
+
+    private final File file;
+    private final Properties committed = new Properties();
+
+    public LoadCheckpoint(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            try (InputStreamReader in = new InputStreamReader(
+                    new FileInputStream(file), "UTF-8")) {
+                committed.load(in);
+            }
+        }
+    }
+
+    /**
+     * @param name name of the csv file
+     * @return number of data rows of the file already committed
+     */
+    public synchronized long committedRows(String name) {
+        String rows = committed.getProperty(name);
+        return rows == null ? 0 : Long.parseLong(rows);
+    }
+
+    /**
+     * Records that the first rows of the given file are in the database. It
+     * must only be called once the transaction holding them has committed.
+     *
+     * @param name name of the csv file
+     * @param rows number of data rows committed so far
+     * @throws IOException
+     */
+    public synchronized void commit(String name, long rows) throws IOException {
+        committed.setProperty(name, Long.toString(rows));
+        store();
+    }
+
+    /**
+     * Forgets every checkpoint, to be called when a whole ingestion finished.
+     */
+    public synchronized void clear() {
+        committed.clear();
+        if (file.exists() && !file.delete()) {
+            System.err.println("Checkpoint file " + file.getAbsolutePath()
+                    + " could not be deleted\n");
+        }
+    }
+
+    private void store() throws IOException {
+        // We write to a temporal file and rename it so that a crash while
+        // writing never leaves a half written checkpoint behind
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            committed.store(out, "Rows committed per csv file");
+        }
+        if (!tmp.renameTo(file)) {
+            // On some platforms rename does not overwrite
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Can't write checkpoint " + file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package master.neo4j;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Csv reader over a memory mapped range of a file. The UTF-8 bytes are
+ * scanned in place for commas, quotes and line breaks, and each field is
+ * only kept as its offsets in the mapping. A field is decoded into its buffer
+ * the first time it is asked for, with a fast path for ASCII, so rows that
+ * are skipped or fields that are not used are never decoded.
+ *
+ * The range is mapped in windows of at most WINDOW bytes, so files of any
+ * size can be read. When a record runs past the end of a window the next one
+ * is mapped from the start of that record, which must therefore fit in a
+ * window.
+ *
+ * It reads like CsvTokenizer: fields may be quoted with double quotes, in
+ * which case they can hold commas, line breaks and doubled quotes, and blank
+ * lines are skipped. Mappings are released by the garbage collector and not
+ * when the reader is closed, so on some platforms the file can't be deleted
+ * right after; we only use it on the original csv files.
+ *
+ * @author fran
+ */
+class MappedCsvReader implements CsvRecords {
+
+    // Bytes mapped at once
+    static final int WINDOW = 64 * 1024 * 1024;
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long COMMAS = 0x2C2C2C2C2C2C2C2CL;
+    private static final long NEW_LINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long RETURNS = 0x0D0D0D0D0D0D0D0DL;
+    private static final long QUOTES = 0x2222222222222222L;
+
+    private final FileChannel channel;
+    private final int windowSize;
+    // End of the range, as an offset of the file
+    private final long end;
+
+    private MappedByteBuffer window;
+    // Offset of the file at which the window starts
+    private long windowStart;
+    private int windowLimit;
+    // Next byte to read, within the window
+    private int pos;
+
+    // Field i of the current record spans [starts[i], ends[i]) of the window,
+    // after its opening quote if quoted[i]
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private boolean[] quoted = new boolean[8];
+    private boolean[] decoded = new boolean[8];
+    private StringBuilder[] fields = new StringBuilder[8];
+    private int count;
+
+    // Where ASCII fields are decoded before they are appended
+    private char[] chars = new char[256];
+
+    /**
+     * @param range bytes to read, which must start at the beginning of a line
+     * @throws IOException
+     */
+    public MappedCsvReader(FileRange range) throws IOException {
+        this(range, WINDOW);
+    }
+
+    MappedCsvReader(FileRange range, int windowSize) throws IOException {
+        this.channel = new FileInputStream(range.getFile()).getChannel();
+        this.windowSize = windowSize;
+        this.end = Math.min(range.getEnd(), channel.size());
+        this.windowStart = range.getStart();
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new StringBuilder(64);
+        }
+    }
+
+    /**
+     * Opens a reader on a range of a csv file. If the range starts at the
+     * beginning of the file the header is skipped, so the first call to
+     * next() always returns a data row.
+     *
+     * @param range
+     * @return
+     * @throws IOException
+     */
+    public static MappedCsvReader open(FileRange range) throws IOException {
+        MappedCsvReader csv = new MappedCsvReader(range);
+        if (range.getStart() == 0) {
+            csv.next();
+        }
+        return csv;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        do {
+            if (!readRecord()) {
+                count = 0;
+                return false;
+            }
+        } while (count == 1 && field(0).length() == 0);
+        return true;
+    }
+
+    private boolean readRecord() throws IOException {
+        if (windowStart + pos >= end) {
+            return false;
+        }
+        while (window == null || !parseRecord()) {
+            if (window != null && pos == 0) {
+                throw new IOException("Record at byte " + windowStart
+                        + " is longer than the mapping window");
+            }
+            map(windowStart + pos);
+        }
+        return true;
+    }
+
+    private void map(long offset) throws IOException {
+        windowLimit = (int) Math.min(windowSize, end - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, windowLimit);
+        windowStart = offset;
+        pos = 0;
+    }
+
+    /**
+     * Finds the fields of the record that starts at pos.
+     *
+     * @return false if the record runs past the window, in which case pos is
+     * left where it was
+     */
+    private boolean parseRecord() {
+        boolean last = windowStart + windowLimit >= end;
+        count = 0;
+        int i = pos;
+        int fieldStart = i;
+        boolean inQuotes = false;
+        boolean isQuoted = false;
+        while (i < windowLimit) {
+            byte b = window.get(i);
+            if (inQuotes) {
+                if (b == '"') {
+                    if (i + 1 == windowLimit && !last) {
+                        return false;
+                    }
+                    // A doubled quote is a literal one
+                    if (i + 1 < windowLimit && window.get(i + 1) == '"') {
+                        i++;
+                    } else {
+                        inQuotes = false;
+                    }
+                }
+                i++;
+            } else if (b == ',') {
+                addField(fieldStart, i, isQuoted);
+                fieldStart = ++i;
+                isQuoted = false;
+            } else if (b == '\n') {
+                addField(fieldStart, i, isQuoted);
+                pos = i + 1;
+                return true;
+            } else if (b == '\r') {
+                if (i + 1 == windowLimit && !last) {
+                    return false;
+                }
+                addField(fieldStart, i, isQuoted);
+                pos = i + 1 < windowLimit && window.get(i + 1) == '\n' ? i + 2 : i + 1;
+                return true;
+            } else if (b == '"' && i == fieldStart) {
+                inQuotes = true;
+                isQuoted = true;
+                fieldStart = ++i;
+            } else {
+                i = skipPlain(i + 1);
+            }
+        }
+        if (!last) {
+            return false;
+        }
+        // The last record of the range has no line break
+        addField(fieldStart, i, isQuoted);
+        pos = i;
+        return true;
+    }
+
+    /**
+     * Skips the bytes that are not commas, line breaks nor quotes, eight at
+     * a time while the window has them.
+     *
+     * @return position of the first such byte from i, or of the tail of the
+     * window that is shorter than eight bytes
+     */
+    private int skipPlain(int i) {
+        while (i + 8 <= windowLimit) {
+            long word = window.getLong(i);
+            long found = matches(word, COMMAS) | matches(word, NEW_LINES)
+                    | matches(word, RETURNS) | matches(word, QUOTES);
+            if (found != 0) {
+                // The window is big endian, so its first byte is the highest
+                return i + (Long.numberOfLeadingZeros(found) >>> 3);
+            }
+            i += 8;
+        }
+        return i;
+    }
+
+    /**
+     * @return the highest bit of every byte of word equal to the byte
+     * repeated in pattern, and nothing else
+     */
+    private static long matches(long word, long pattern) {
+        long zeros = word ^ pattern;
+        return ~(((zeros & LOW_BITS) + LOW_BITS) | zeros | LOW_BITS);
+    }
+
+    private void addField(int start, int end, boolean isQuoted) {
+        if (count == fields.length) {
+            int length = fields.length * 2;
+            starts = Arrays.copyOf(starts, length);
+            ends = Arrays.copyOf(ends, length);
+            quoted = Arrays.copyOf(quoted, length);
+            decoded = Arrays.copyOf(decoded, length);
+            StringBuilder[] grown = Arrays.copyOf(fields, length);
+            for (int i = fields.length; i < length; i++) {
+                grown[i] = new StringBuilder(64);
+            }
+            fields = grown;
+        }
+        starts[count] = start;
+        ends[count] = end;
+        quoted[count] = isQuoted;
+        decoded[count] = false;
+        count++;
+    }
+
+    @Override
+    public int fieldCount() {
+        return count;
+    }
+
+    /**
+     * Tells whether field i is unquoted and its bytes are ASCII other than
+     * quotes, so it reads the same as the bytes between fieldStart and
+     * fieldEnd.
+     *
+     * @param i
+     * @return
+     */
+    boolean isPlainAscii(int i) {
+        if (quoted[i]) {
+            return false;
+        }
+        int j = starts[i];
+        for (; j + 8 <= ends[i]; j += 8) {
+            long word = window.getLong(j);
+            if ((word & ~LOW_BITS) != 0 || matches(word, QUOTES) != 0) {
+                return false;
+            }
+        }
+        for (; j < ends[i]; j++) {
+            byte b = window.get(j);
+            if (b < 0 || b == '"') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the window the current record is in, only valid until the
+     * next call to next()
+     */
+    ByteBuffer window() {
+        return window;
+    }
+
+    int fieldStart(int i) {
+        return starts[i];
+    }
+
+    int fieldEnd(int i) {
+        return ends[i];
+    }
+
+    @Override
+    public StringBuilder field(int i) {
+        StringBuilder field = fields[i];
+        if (!decoded[i]) {
+            decode(starts[i], ends[i], quoted[i], field);
+            decoded[i] = true;
+        }
+        return field;
+    }
+
+    /**
+     * Decodes the UTF-8 bytes [start, end) of the window into the field,
+     * taking the quotes out.
+     */
+    private void decode(int start, int end, boolean isQuoted, StringBuilder field) {
+        field.setLength(0);
+        if (!isQuoted && decodeAscii(start, end, field)) {
+            return;
+        }
+        boolean inQuotes = isQuoted;
+        int i = start;
+        while (i < end) {
+            byte b = window.get(i);
+            if (b < 0) {
+                i = decodeMultibyte(i, end, field);
+            } else if (b != '"') {
+                field.append((char) b);
+                i++;
+            } else if (inQuotes) {
+                if (i + 1 < end && window.get(i + 1) == '"') {
+                    field.append('"');
+                    i += 2;
+                } else {
+                    inQuotes = false;
+                    i++;
+                }
+            } else if (field.length() == 0) {
+                inQuotes = true;
+                i++;
+            } else {
+                field.append('"');
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Copies the bytes [start, end) of the window into the field, in one go,
+     * if they are all ASCII.
+     *
+     * @return false if they are not, and the field was left empty
+     */
+    private boolean decodeAscii(int start, int end, StringBuilder field) {
+        int length = end - start;
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = window.get(start + i);
+            if (b < 0) {
+                return false;
+            }
+            chars[i] = (char) b;
+        }
+        field.append(chars, 0, length);
+        return true;
+    }
+
+    /**
+     * Decodes the character whose first byte is at i. Malformed sequences
+     * become U+FFFD, as the decoder of InputStreamReader does.
+     *
+     * @return position after the character
+     */
+    private int decodeMultibyte(int i, int end, StringBuilder field) {
+        int first = window.get(i) & 0xFF;
+        int extra;
+        int codePoint;
+        if (first >= 0xF8 || first < 0xC0) {
+            field.append('\uFFFD');
+            return i + 1;
+        } else if (first >= 0xF0) {
+            extra = 3;
+            codePoint = first & 0x07;
+        } else if (first >= 0xE0) {
+            extra = 2;
+            codePoint = first & 0x0F;
+        } else {
+            extra = 1;
+            codePoint = first & 0x1F;
+        }
+        for (int k = 1; k <= extra; k++) {
+            if (i + k >= end || (window.get(i + k) & 0xC0) != 0x80) {
+                field.append('\uFFFD');
+                return i + k;
+            }
+            codePoint = (codePoint << 6) | (window.get(i + k) & 0x3F);
+        }
+        if (codePoint > Character.MAX_CODE_POINT) {
+            field.append('\uFFFD');
+        } else {
+            field.appendCodePoint(codePoint);
+        }
+        return i + extra + 1;
+    }
+
+    @Override
+    public String get(int i) {
+        return i < count ? field(i).toString() : null;
+    }
+
+    @Override
+    public String[] toArray() {
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = field(i).toString();
+        }
+        return values;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
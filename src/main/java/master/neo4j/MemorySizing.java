@@ -0,0 +1,149 @@
+package master.neo4j;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.neo4j.graphdb.config.Setting;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+
+/**
+ * Settings of the memory of the embedded database worked out from the store
+ * it opens and the memory of the machine, instead of the defaults Neo4j picks
+ * from the heap alone.
+ *
+ * Every store file the queries read gets a memory mapping a little bigger
+ * than the file, so that the whole store can be read without going to disk
+ * once it has been touched, and room is left for what the run ingests. If
+ * the mappings don't fit in the memory the heap leaves, they all shrink in
+ * proportion. The object cache keeps the nodes and relationships the queries
+ * have read as objects in the heap: it is strong, so nothing read is ever
+ * dropped, when our estimate of the whole graph as objects fits in a quarter
+ * of the heap, and soft otherwise, so the collector can drop it under
+ * pressure.
+ *
+ * A store that doesn't exist yet is left with the defaults.
+ *
+ * @author fran
+ */
+class MemorySizing {
+
+    // Store files and the setting of their mapping
+    static final String NODES = "neostore.nodestore.db";
+    private static final String RELATIONSHIPS = "neostore.relationshipstore.db";
+    private static final Object[][] STORES = {
+        {NODES, GraphDatabaseSettings.nodestore_mapped_memory_size},
+        {RELATIONSHIPS, GraphDatabaseSettings.relationshipstore_mapped_memory_size},
+        {"neostore.propertystore.db", GraphDatabaseSettings.nodestore_propertystore_mapped_memory_size},
+        {"neostore.propertystore.db.strings", GraphDatabaseSettings.strings_mapped_memory_size},
+        {"neostore.propertystore.db.arrays", GraphDatabaseSettings.arrays_mapped_memory_size}};
+
+    // Bytes of a record of the node and relationship stores
+    static final int NODE_RECORD = 15;
+    private static final int RELATIONSHIP_RECORD = 34;
+    // Heap a cached node and relationship take, with their properties, as
+    // the Neo4j manual estimates them
+    private static final int NODE_OBJECT = 344;
+    private static final int RELATIONSHIP_OBJECT = 208;
+    // Mappings are this much bigger than their files
+    private static final double GROWTH = 1.25;
+    private static final long MB = 1024 * 1024;
+    // Memory of the machine left to the OS and the rest of the process
+    private static final long RESERVE = 512 * MB;
+
+    private final Map<Setting<?>, String> settings = new LinkedHashMap<>();
+    private long storeBytes;
+    private long mappedBytes;
+    private long budget;
+    private long cacheBytes;
+
+    private MemorySizing() {
+    }
+
+    /**
+     * Works out the settings for the store.
+     *
+     * @param storeDir directory of the store
+     * @param budgetMB memory the mappings may take in all, or 0 for the memory
+     * of the machine not taken by the heap
+     * @return
+     */
+    public static MemorySizing of(File storeDir, long budgetMB) {
+        MemorySizing sizing = new MemorySizing();
+        sizing.budget = budgetMB > 0 ? budgetMB * MB : memoryBesidesHeap();
+        if (!BulkImporter.storeExists(storeDir.getPath())) {
+            return sizing;
+        }
+        long[] wanted = new long[STORES.length];
+        long total = 0;
+        for (int i = 0; i < STORES.length; i++) {
+            long size = new File(storeDir, (String) STORES[i][0]).length();
+            sizing.storeBytes += size;
+            wanted[i] = Math.max(MB, roundUp((long) (size * GROWTH)));
+            total += wanted[i];
+        }
+        double scale = total > sizing.budget ? (double) sizing.budget / total : 1;
+        for (int i = 0; i < STORES.length; i++) {
+            long bytes = Math.max(MB, (long) (wanted[i] * scale) / MB * MB);
+            sizing.mappedBytes += bytes;
+            sizing.settings.put((Setting<?>) STORES[i][1], bytes / MB + "M");
+        }
+        long nodes = nodeRecords(storeDir);
+        long relationships = new File(storeDir, RELATIONSHIPS).length() / RELATIONSHIP_RECORD;
+        sizing.cacheBytes = (long) ((nodes * NODE_OBJECT + relationships * RELATIONSHIP_OBJECT)
+                * GROWTH);
+        sizing.settings.put(GraphDatabaseSettings.cache_type,
+                sizing.cacheBytes < Runtime.getRuntime().maxMemory() / 4 ? "strong" : "soft");
+        return sizing;
+    }
+
+    /**
+     * @param storeDir
+     * @return records of the node store, which are one more than the highest
+     * node id it holds, or 0 if there is no store
+     */
+    static long nodeRecords(File storeDir) {
+        return new File(storeDir, NODES).length() / NODE_RECORD;
+    }
+
+    private static long roundUp(long bytes) {
+        return (bytes + MB - 1) / MB * MB;
+    }
+
+    /**
+     * @return physical memory of the machine not taken by the heap nor the
+     * reserve, or the heap itself if the VM doesn't tell the physical memory
+     */
+    // getTotalMemorySize, which replaces it, is not there at source level 1.7
+    @SuppressWarnings("deprecation")
+    private static long memoryBesidesHeap() {
+        long heap = Runtime.getRuntime().maxMemory();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long physical = ((com.sun.management.OperatingSystemMXBean) os)
+                    .getTotalPhysicalMemorySize();
+            return Math.max(MB, physical - heap - RESERVE);
+        }
+        return heap;
+    }
+
+    /**
+     * @return the settings to open the database with, empty for a new store
+     */
+    public Map<Setting<?>, String> getSettings() {
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        if (settings.isEmpty()) {
+            return "Memory sizing: no store yet, default settings";
+        }
+        return "Memory sizing: " + storeBytes / 1024 + " KB of store files, "
+                + mappedBytes / MB + " MB mapped of " + budget / MB + " MB available, ~"
+                + cacheBytes / MB + " MB of cached objects of "
+                + Runtime.getRuntime().maxMemory() / MB + " MB of heap, "
+                + settings.get(GraphDatabaseSettings.cache_type) + " cache";
+    }
+}
@@ -0,0 +1,366 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Timers and counters of the stages of a run: preprocessing, loads, schema,
+ * queries and result writes, and the rows, nodes, relationships and
+ * transactions they go through.
+ *
+ * Timers keep a histogram of their latencies, so percentiles can be read at
+ * any time. Every metric can be read over JMX as an attribute of the
+ * master.neo4j:type=Metrics MBean, and appended periodically to a csv file.
+ *
+ * @author fran
+ */
+class Metrics implements DynamicMBean {
+
+    private static final String OBJECT_NAME = "master.neo4j:type=Metrics";
+
+    private final ConcurrentSkipListMap<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, AtomicLong> counters
+            = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService dumper;
+
+    /**
+     * Latencies of a stage, in a histogram with 8 buckets per power of two,
+     * so percentiles are within 12.5% of the real value.
+     */
+    static class Timer {
+
+        private static final int BUCKETS = 488;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        public void update(long nanos) {
+            nanos = Math.max(0, nanos);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Another thread moved the max, we try again
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getTotalMillis() {
+            return totalNanos.get() / 1e6;
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the percentile
+         */
+        public double getPercentileMillis(double percentile) {
+            long n = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                n += snapshot[i];
+            }
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos.get()) / 1e6;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < 8) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return (exponent - 2) * 8 + (int) ((nanos >>> (exponent - 3)) & 7);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 8) {
+                return bucket;
+            }
+            int exponent = bucket / 8 + 2;
+            return ((8L + bucket % 8 + 1) << (exponent - 3)) - 1;
+        }
+    }
+
+    /**
+     * @param name
+     * @return the timer with that name, created the first time
+     */
+    public Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = new Timer();
+            Timer before = timers.putIfAbsent(name, timer);
+            if (before != null) {
+                timer = before;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Adds to the counter with that name, created the first time.
+     *
+     * @param name
+     * @param delta
+     */
+    public void count(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong before = counters.putIfAbsent(name, counter);
+            if (before != null) {
+                counter = before;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    public long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Publishes the metrics in the platform MBean server, replacing those of
+     * another instance.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Appends every metric to the csv file every interval, until stop is
+     * called.
+     *
+     * @param csv
+     * @param interval
+     * @param unit
+     */
+    public synchronized void startDump(final File csv, long interval, TimeUnit unit) {
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(csv);
+                } catch (IOException ex) {
+                    Logger.getLogger(Metrics.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Stops the periodic dump, if any, after a last one.
+     *
+     * @param csv
+     * @throws IOException
+     */
+    public synchronized void stop(File csv) throws IOException {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        dump(csv);
+    }
+
+    /**
+     * Appends a line per metric to the csv file, with the time of the dump.
+     * Counters only fill the count column.
+     *
+     * @param csv
+     * @throws IOException
+     */
+    public synchronized void dump(File csv) throws IOException {
+        boolean header = !csv.exists() || csv.length() == 0;
+        long now = System.currentTimeMillis();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(csv, true), "UTF-8")) {
+            if (header) {
+                out.write("time,metric,count,total_ms,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+            }
+            for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+                Timer t = timer.getValue();
+                out.write(now + "," + timer.getKey() + "," + t.getCount()
+                        + "," + format(t.getTotalMillis()) + "," + format(t.getMeanMillis())
+                        + "," + format(t.getPercentileMillis(50))
+                        + "," + format(t.getPercentileMillis(95))
+                        + "," + format(t.getPercentileMillis(99))
+                        + "," + format(t.getMaxMillis()) + "\n");
+            }
+            for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+                out.write(now + "," + counter.getKey() + "," + counter.getValue().get()
+                        + ",,,,,,\n");
+            }
+        }
+    }
+
+    private static String format(double millis) {
+        return String.format("%.3f", millis);
+    }
+
+    /**
+     * @return a line per metric, for the log
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("Metrics:\n");
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            Timer t = timer.getValue();
+            out.append(String.format("  %-28s %8d calls, total %10.1f ms, p50 %8.2f ms,"
+                    + " p99 %8.2f ms, max %8.2f ms%n", timer.getKey(), t.getCount(),
+                    t.getTotalMillis(), t.getPercentileMillis(50),
+                    t.getPercentileMillis(99), t.getMaxMillis()));
+        }
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            out.append(String.format("  %-28s %8d%n", counter.getKey(), counter.getValue().get()));
+        }
+        return out.toString();
+    }
+
+    // Attributes are the counters by name, and name.count, name.mean_ms,
+    // name.p50_ms, name.p95_ms, name.p99_ms and name.max_ms for the timers
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        Timer timer = dot < 0 ? null : timers.get(attribute.substring(0, dot));
+        if (timer != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return timer.getCount();
+                case "mean_ms":
+                    return timer.getMeanMillis();
+                case "p50_ms":
+                    return timer.getPercentileMillis(50);
+                case "p95_ms":
+                    return timer.getPercentileMillis(95);
+                case "p99_ms":
+                    return timer.getPercentileMillis(99);
+                case "max_ms":
+                    return timer.getMaxMillis();
+                default:
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the interface expects
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        // Metrics have no operations
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String counter : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(counter, "long", "Counter", true, false, false));
+        }
+        for (String timer : timers.keySet()) {
+            attributes.add(new MBeanAttributeInfo(timer + ".count", "long",
+                    "Calls", true, false, false));
+            for (String stat : new String[]{"mean_ms", "p50_ms", "p95_ms", "p99_ms", "max_ms"}) {
+                attributes.add(new MBeanAttributeInfo(timer + "." + stat, "double",
+                        "Latency", true, false, false));
+            }
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Stage timers and counters",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,83 @@
+package master.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import master.neo4j.Neo4jApp.Labels;
+import master.neo4j.Neo4jApp.RelTypes;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+
+/**
+ * Query 4 written against the core API instead of Cypher: authors who are
+ * friends of a reviewer of their own paper, for the papers of a journal
+ * volume.
+ *
+ * From the journal we expand to its papers. For each paper the ids of its
+ * reviewers go into a primitive set, and then every friend of every author of
+ * the paper is looked up in that set, so each paper costs one pass over its
+ * REVIEWED, WROTE and IS_FRIEND relationships.
+ *
+ * @author fran
+ */
+class NativeQuery4 {
+
+    private NativeQuery4() {
+    }
+
+    /**
+     * Must be called inside a transaction.
+     *
+     * @param db
+     * @param journalName
+     * @param journalVolume volume as loaded from the csv
+     * @return rows with the same p, a and r columns the Cypher query returns
+     */
+    public static List<Map<String, Object>> run(GraphDatabaseService db,
+            String journalName, String journalVolume) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (PrimitiveLongSet reviewers = Primitive.longSet();
+                ResourceIterator<Node> journals = db.findNodesByLabelAndProperty(
+                        Labels.Journal, "name", journalName).iterator()) {
+            while (journals.hasNext()) {
+                Node journal = journals.next();
+                // Journals are indexed by name only
+                if (!journalVolume.equals(journal.getProperty("volume", null))) {
+                    continue;
+                }
+                for (Relationship has : journal.getRelationships(RelTypes.HAS, Direction.OUTGOING)) {
+                    Node paper = has.getEndNode();
+                    reviewers.clear();
+                    for (Relationship reviewed : paper.getRelationships(
+                            RelTypes.REVIEWED, Direction.INCOMING)) {
+                        reviewers.add(reviewed.getStartNode().getId());
+                    }
+                    if (reviewers.isEmpty()) {
+                        continue;
+                    }
+                    for (Relationship wrote : paper.getRelationships(
+                            RelTypes.WROTE, Direction.INCOMING)) {
+                        Node author = wrote.getStartNode();
+                        for (Relationship friend : author.getRelationships(
+                                RelTypes.IS_FRIEND, Direction.OUTGOING)) {
+                            if (reviewers.contains(friend.getEndNode().getId())) {
+                                Map<String, Object> row = new HashMap<>(4);
+                                row.put("p", paper);
+                                row.put("a", author);
+                                row.put("r", friend.getEndNode());
+                                rows.add(row);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -1,26 +1,35 @@
 package master.neo4j;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.neo4j.cypher.ExecutionEngine;
 import org.neo4j.cypher.ExecutionResult;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.config.Setting;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.kernel.impl.util.StringLogger;
 
 /**
@@ -33,211 +42,391 @@ public class Neo4jApp {
     private final GraphDatabaseService db;
 
     // File in which results are written down
-    private final File fout = new File("Fco.JavierSanchezCarmona.log");
+    private File fout = new File("Fco.JavierSanchezCarmona.log");
+    private ResultFormat resultFormat = ResultFormat.LINES;
+    // Results are streamed to the file by a writer thread through a queue of
+    // this many chunks
+    private static final int RESULT_QUEUE_CHUNKS = 64;
+    private ResultSink results;
+    // Results of the latest queries, null if they are not cached
+    private ResultCache cache;
+    // Timers and counters of every stage of the run
+    private Metrics metrics = new Metrics();
 
     private final ExecutionEngine engine;
+    private final PlanCacheMonitor planCacheMonitor;
+    // Reads queries 2 and 3 a page per transaction
+    private final QueryPager pager;
+    // Rows of queries 2 and 3 read per transaction, 0 to read each in one
+    private int pageSize;
 
-    private static enum RelTypes implements RelationshipType {
+    // The queries take their parameters apart, so that the engine plans each
+    // of them only once and reuses the cached plan afterwards
+    // Typed, as authors have CONFLICTS relationships to papers too
+    private static final String Q1
+            = "MATCH (a:Author)-[:WROTE]->(p:Paper)<-[:REVIEWED]-(r:Reviewer)\n"
+            + "WHERE p.title = {paperName}\n"
+            + "RETURN p,a,r;";
+    private static final String Q2
+            = "MATCH (c:Conference)-[HAS]->(p:Paper)\n"
+            + "WHERE c.name = {conferenceName}\n"
+            + "RETURN c,p;";
+    private static final String Q3
+            = "MATCH (a:Author {surname:{autorName}})-[:WROTE]->(p:Paper)\n"
+            + "RETURN a,p;";
+    // The conflicts are materialized at ingestion, see ConflictIndex
+    private static final String Q4
+            = "MATCH (j:Journal {volume:{journalVolume},name:{journalName}})"
+            + "-[:HAS]->(p:Paper)<-[c:CONFLICTS]-(a:Author),\n"
+            + "(p)<-[:REVIEWED]-(r:Reviewer)\n"
+            + "WHERE r.surname = c.reviewer\n"
+            + "RETURN p,a,r;";
 
-        HAS, IS_FRIEND, WROTE, REVIEWED
+    // Papers of a journal volume and their authors, on which the result of
+    // query 4 depends
+    private static final String Q4_DEPENDENCIES
+            = "MATCH (j:Journal {volume:{journalVolume},name:{journalName}})-[:HAS]->(p:Paper)\n"
+            + "OPTIONAL MATCH (a:Author)-[:WROTE]->(p)\n"
+            + "RETURN p.title AS title, collect(a.surname) AS authors;";
+
+    // Relates the paper of a row bound to p with its reviewer and authors, by
+    // the node ids the entity dictionary added to the row
+    private static final String PAPER_PEOPLE
+            = "MATCH (rev) WHERE id(rev) = row.ReviewerId\n"
+            + "MERGE (rev)-[re:REVIEWED]->(p)\n"
+            + "WITH p, row\n"
+            + "UNWIND row.AuthorIds AS authorId\n"
+            + "MATCH (a) WHERE id(a) = authorId\n"
+            + "MERGE (a)-[:WROTE]->(p)\n";
+
+    // Rows committed per transaction while loading the csv files
+    private int batchSize = 1000;
+    // File in which the last committed batch of each csv is recorded
+    private File checkpointFile = new File("Neo4jAppLoad.checkpoint");
+    private CsvBatchLoader batchLoader;
+    // Node ids of the authors and reviewers, kept across the loads
+    private EntityDictionary dictionary;
+    // Whether the csv files are normalized on the way to the loaders, instead
+    // of through processed_*.csv files
+    private boolean streaming;
+    // Batches the streaming preprocessing may be ahead of the loaders
+    private int queueCapacity = 4;
+    // File in which the part of each csv already ingested is recorded
+    private File ingestStateFile = new File("Neo4jAppIngest.state");
+    // Directory of the store
+    private final String storeDir;
+    // Whether the store was created when this instance opened it
+    private final boolean newStore;
+    // Whether some ingestion failed and has to be resumed by a later run
+    private boolean ingestPending;
+    // Part of each csv file to ingest in the current populate, by file name
+    private Map<String, FileRange> ranges = new HashMap<>();
+    // Whether query 4 runs on the core API instead of Cypher
+    private boolean nativeQ4;
+    // Copy of the graph the queries run on instead of the database, if any
+    private GraphProjection projection;
+    // Queries run at least once, whose first run was timed as cold
+    private final Set<String> ran = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean firstQueryDone = new AtomicBoolean();
+    // Queries run by probe, whose runs were timed as warm
+    private final Set<String> probed = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    // Preprocesses the csv files in parallel
+    private ParallelPreprocessor preprocessor = new ParallelPreprocessor(
+            Runtime.getRuntime().availableProcessors(), 64L * 1024 * 1024);
+
+    static enum RelTypes implements RelationshipType {
+
+        HAS, IS_FRIEND, WROTE, REVIEWED, CONFLICTS
+    }
+
+    static enum Labels implements Label {
+
+        Paper, Author, Reviewer, Conference, Journal, ConflictIndex
     }
 
     public Neo4jApp(String filePath) {
-        this.db = new GraphDatabaseFactory().newEmbeddedDatabase(DB_PATH);
-        registerShutdownHook(db);
+        this(filePath, Collections.<Setting<?>, String>emptyMap());
+    }
+
+    /**
+     * @param filePath directory of the store
+     * @param config settings of the database, see MemorySizing
+     */
+    public Neo4jApp(String filePath, Map<Setting<?>, String> config) {
+        this.storeDir = filePath;
+        this.newStore = !BulkImporter.storeExists(filePath);
+        GraphDatabaseBuilder builder = new GraphDatabaseFactory()
+                .newEmbeddedDatabaseBuilder(filePath);
+        for (Map.Entry<Setting<?>, String> setting : config.entrySet()) {
+            builder.setConfig(setting.getKey(), setting.getValue());
+        }
+        this.db = builder.newGraphDatabase();
+        registerShutdownHook(this);
         this.engine = new ExecutionEngine(db, StringLogger.SYSTEM);
+        this.planCacheMonitor = PlanCacheMonitor.register(engine);
+        this.pager = new QueryPager(db, engine);
+        ConflictIndex.ensure(db, engine);
+    }
+
+    GraphDatabaseService getDatabase() {
+        return db;
+    }
+
+    /**
+     * Writes the pending results and shuts the database down. It is also
+     * called when the VM exits.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (results != null) {
+                try {
+                    results.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        db.shutdown();
+    }
+
+    public void setResultFile(File fout) {
+        this.fout = fout;
+    }
+
+    public void setResultFormat(ResultFormat resultFormat) {
+        this.resultFormat = resultFormat;
+    }
+
+    public void setResultCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    public ResultCache getResultCache() {
+        return cache;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    public PlanCacheMonitor getPlanCacheMonitor() {
+        return planCacheMonitor;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void setPreprocessor(ParallelPreprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+    }
+
+    public void setIngestStateFile(File ingestStateFile) {
+        this.ingestStateFile = ingestStateFile;
     }
 
-    private static void registerShutdownHook(final GraphDatabaseService graphDb) {
+    public void setNativeQ4(boolean nativeQ4) {
+        this.nativeQ4 = nativeQ4;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setProjection(GraphProjection projection) {
+        this.projection = projection;
+    }
+
+    public GraphProjection getProjection() {
+        return projection;
+    }
+
+    private static void registerShutdownHook(final Neo4jApp app) {
         // Registers a shutdown hook for the Neo4j instance so that it
         // shuts down nicely when the VM exits (even if you "Ctrl-C" the
         // running application).
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                graphDb.shutdown();
+                app.shutdown();
             }
         });
     }
 
-    private ExecutionResult loadConferences(String path) {
-        ExecutionResult result = null;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute("LOAD CSV WITH HEADERS FROM \"file:////"
-                    + path + "/processed_conferences.csv\"\n"
-                    + "AS conferences\n"
-                    + "WITH conferences, toInt(conferences.Year) as Year, [w in split(conferences.Authors,\";\")] AS auths\n"
+    long loadConferences(String path) {
+        long rows = -1;
+        try {
+            rows = load(path, "conferences.csv",
+                    "UNWIND {rows} AS conferences\n"
+                    + "WITH conferences, toInt(conferences.Year) as Year\n"
                     + "MERGE (p:Paper {title:conferences.Title, year:coalesce(Year,\"none\")})\n"
-                    + "FOREACH (auth IN auths |\n"
-                    + "	MERGE (a:Author {surname:trim(auth)})\n"
-                    + "	MERGE (a)-[:WROTE]->(p)\n"
-                    + ")\n"
                     + "MERGE (c:Conference {name:conferences.ConferenceName,city:conferences.City,year:Year})\n"
                     + "MERGE (c)-[r:HAS]->(p)\n"
-                    + "MERGE (rev:Reviewer {surname:conferences.Reviewer})\n"
-                    + "MERGE (rev)-[re:REVIEWED]->(p)");
-            tx.success();
+                    + "WITH p, conferences AS row\n"
+                    + PAPER_PEOPLE
+                    + ConflictIndex.FROM_PAPERS);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction loadconfs failed \n");
         }
-        return result;
+        return rows;
     }
 
-    private ExecutionResult loadJournals(String path) {
-        ExecutionResult result = null;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute("LOAD CSV WITH HEADERS FROM \"file:////"
-                    + path + "/processed_journals.csv\"\n"
-                    + "AS journals\n"
-                    + "WITH journals, [w in split(journals.Authors,\";\")] AS auths\n"
+    long loadJournals(String path) {
+        long rows = -1;
+        try {
+            rows = load(path, "journals.csv",
+                    "UNWIND {rows} AS journals\n"
                     + "MERGE(p:Paper {title:journals.Title})\n"
                     + "MERGE (j:Journal {name:journals.JournalName,volume:journals.Volume})\n"
                     + "MERGE (j)-[r:HAS]->(p)\n"
-                    + "FOREACH (auth IN auths |\n"
-                    + "	MERGE (a:Author {surname:auth})\n"
-                    + "	MERGE (a)-[w:WROTE]->(p)\n"
-                    + ")\n"
-                    + "MERGE (rev:Reviewer {surname:journals.Reviewer})\n"
-                    + "MERGE (rev)-[re:REVIEWED]->(p)");
-            tx.success();
+                    + "WITH p, journals AS row\n"
+                    + PAPER_PEOPLE
+                    + ConflictIndex.FROM_PAPERS);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction loadJournals failed \n");
         }
-        return result;
+        return rows;
     }
 
-    private ExecutionResult loadFriendships(String path) {
-        ExecutionResult result = null;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute("LOAD CSV WITH HEADERS FROM \"file:////"
-                    + path + "/processed_friendships.csv\"\n"
-                    + "AS f\n"
-                    + "WITH f\n"
-                    + "MERGE (rev:Reviewer {surname:f.Reviewer})\n"
-                    + "MERGE (a:Author {surname:f.Author})\n"
-                    + "MERGE (a)-[i:IS_FRIEND]->(rev)");
-            tx.success();
+    long loadFriendships(String path) {
+        long rows = -1;
+        try {
+            rows = load(path, "friendships.csv",
+                    "UNWIND {rows} AS f\n"
+                    + "MATCH (rev) WHERE id(rev) = f.ReviewerId\n"
+                    + "MATCH (a) WHERE id(a) = f.AuthorId\n"
+                    + "MERGE (a)-[i:IS_FRIEND]->(rev)\n"
+                    + ConflictIndex.FROM_FRIENDSHIPS);
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction loadFs failed \n");
         }
-        return result;
+        return rows;
     }
 
-    private void deleteTempFiles(File[] files) {
-        System.out.println("Now we delete the temporal files:\n");
-        for (File file : files) {
-            if (file.delete()) {
-                System.out.println(file.getName() + " is deleted!");
-            } else {
-                System.out.println("Delete operation is failed. \n");
+    /**
+     * Loads one of the csv files, from its processed copy or, when streaming,
+     * from the original normalizing it on the way.
+     *
+     * @param path
+     * @param name name of the original csv file
+     * @param query
+     * @return number of rows loaded
+     * @throws IOException
+     */
+    private long load(String path, String name, String query) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (streaming) {
+                FileRange range = ranges.get(name);
+                return batchLoader.stream(range != null ? range
+                        : FileRange.whole(new File(path, name)), query);
             }
+            return batchLoader.load(new File(path, "processed_" + name), query);
+        } finally {
+            metrics.timer("load." + name).update(System.nanoTime() - start);
         }
     }
 
     /**
-     * Process a line of the file by trimming whitespaces of each array of
-     * Strings passed as an argument.
+     * Opens the batch loader the load methods use, which resumes each file
+     * from the checkpoint.
      *
-     * @param colStrings
-     * @param authStrings
-     * @return String with the processedLine ready to be written in a file
+     * @return the checkpoint of the loader
+     * @throws IOException
      */
-    private String processLine(String[] colStrings, String[] authStrings) {
-        String processedLine = "";
-        for (int i = 0; i <= colStrings.length - 1; i++) {
-            if (i != 1) {
-                processedLine += colStrings[i].trim();
-                // We don't write the separator in the last element
-                if (i != colStrings.length - 1) {
-                    processedLine += ",";
-                }
-            } else {
-                for (int j = 0; j <= authStrings.length - 1; j++) {
-                    processedLine += authStrings[j].trim();
-                    // We don't write the separator in the last element
-                    if (j != (authStrings.length - 1)) {
-                        processedLine += ";";
-                    } else {
-                        processedLine += ",";
-                    }
-                }
-            }
+    LoadCheckpoint openBatchLoader() throws IOException {
+        LoadCheckpoint checkpoint = new LoadCheckpoint(checkpointFile);
+        batchLoader = new CsvBatchLoader(db, engine, batchSize, checkpoint, queueCapacity,
+                metrics);
+        // The cached results the loads change are dropped as they commit
+        batchLoader.setListener(cache);
+        if (dictionary == null) {
+            dictionary = new EntityDictionary(db);
         }
-        // We turn to lowerCase to avoid problems at load
-        return processedLine.toLowerCase();
-    }
-
-    private File preProcessFile(File file) throws IOException {
-        String line;
-        String[] columStrings;
-        String[] authors;
-        // We create the postProcessed file
-        File fileOutput = new File("processed_" + file.getName());
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fileOutput, true))) {
-            System.out.println("PreProcessing file" + file.getName());
-            // We now read the original file to process it
-            BufferedReader fileReader = new BufferedReader(new FileReader(file));
-            String processedLine;
-
-            // we write the first line with the column names
-            bw.write(fileReader.readLine());
-            bw.newLine();
-            while ((line = fileReader.readLine()) != null) {
-                // We extract all columns
-                columStrings = line.split(",");
-                // We extract the authors
-                authors = columStrings[1].split(";");
-                // We write the processed line to the temp file
-                processedLine = processLine(columStrings, authors);
-                bw.write(processedLine);
-                bw.newLine();
+        batchLoader.setResolver(dictionary);
+        return checkpoint;
+    }
+
+    private static void deleteTempFiles(File[] files) {
+        System.out.println("Now we delete the temporal files:\n");
+        for (File file : files) {
+            if (file.delete()) {
+                System.out.println(file.getName() + " is deleted!");
+            } else {
+                System.out.println("Delete operation is failed. \n");
             }
-            System.out.println("File succesfully written: " + fileOutput.getAbsolutePath() + "\n");
         }
-        return fileOutput;
     }
 
     /**
-     * Ingests all csv files into Neo4j
+     * Ingests all csv files into Neo4j, committing every batchSize rows. Once
+     * the three files are in, the load checkpoint is no longer needed.
      *
      * @param path
+     * @return rows ingested by csv file name, or null if some load failed
      */
-    private void ingestDatabase(String path) {
-        ExecutionResult result = loadConferences(path);
-        System.out.println("Ingestion of conferences return: \n" + result.dumpToString() + "\n");
-        result = loadJournals(path);
-        System.out.println("Ingestion of journals return: \n" + result.dumpToString() + "\n");
-        result = loadFriendships(path);
-        System.out.println("Ingestion of friendships return: \n" + result.dumpToString() + "\n");
+    private Map<String, Long> ingestDatabase(String path) {
+        try {
+            LoadCheckpoint checkpoint = openBatchLoader();
+            long conferences = loadConferences(path);
+            System.out.println("Ingestion of conferences return: " + conferences + " rows\n");
+            long journals = loadJournals(path);
+            System.out.println("Ingestion of journals return: " + journals + " rows\n");
+            long friendships = loadFriendships(path);
+            System.out.println("Ingestion of friendships return: " + friendships + " rows\n");
+            System.out.println(dictionary + "\n");
+            // A failed load returns -1 and must be resumed in the next run
+            if (conferences >= 0 && journals >= 0 && friendships >= 0) {
+                checkpoint.clear();
+                Map<String, Long> rows = new HashMap<>();
+                rows.put("conferences.csv", conferences);
+                rows.put("journals.csv", journals);
+                rows.put("friendships.csv", friendships);
+                return rows;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
     }
 
     /**
-     * Receives directory path in which csv files are located, and populates the
-     * database with them.
+     * Lists the csv files in the given directory, but the processed ones we
+     * write ourselves.
      *
      * @param path
+     * @return
      */
-    public void populate(String path) {
+    private static List<File> listCsvFiles(String path) {
         File folder = new File(path);
         File[] listOfFiles = folder.listFiles();
-        File[] tempFiles = new File[3];
+        List<File> csvFiles = new ArrayList<>();
         if (listOfFiles != null) {
-            int i = 0;
-            // We read all csv files in path
             for (File file : listOfFiles) {
-                if (file.isFile() && file.getName().endsWith(".csv")) {
-                    try {
-                        tempFiles[i] = preProcessFile(file);
-                        i++;
-                    } catch (IOException ex) {;
-                        System.err.println("Hay ficheros corruptos con nombre 'processed_*'"
-                                + " eliminelos, para poder "
-                                + "ejecutar el programa correctamente");
-                        
-                    }
+                if (file.isFile() && file.getName().endsWith(".csv")
+                        && !file.getName().startsWith("processed_")) {
+                    csvFiles.add(file);
                 }
             }
         } else {
@@ -247,57 +436,181 @@ public class Neo4jApp {
                 Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        return csvFiles;
+    }
+
+    /**
+     * Preprocesses the given ranges of the csv files, trimming and turning to
+     * lowercase every field and every author. Each one is written, after the
+     * header of its file, to processed_ + the file name.
+     *
+     * @param ranges
+     * @param preprocessor
+     * @return the processed files
+     */
+    private static File[] preProcessFiles(List<FileRange> ranges, ParallelPreprocessor preprocessor) {
+        List<File> tempFiles = preprocessor.processAll(ranges);
+        return tempFiles.toArray(new File[tempFiles.size()]);
+    }
+
+    /**
+     * Receives directory path in which csv files are located, and populates the
+     * database with them. Only the rows appended to each file since the last
+     * run are ingested, unless the file was rewritten or the database is new.
+     *
+     * @param path
+     */
+    public void populate(String path) {
+        IngestState state;
+        try {
+            state = new IngestState(ingestStateFile);
+            if (newStore) {
+                state.reset();
+            }
+            ranges = new HashMap<>();
+            for (File csv : listCsvFiles(path)) {
+                ranges.put(csv.getName(), state.plan(csv));
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        File[] tempFiles = streaming ? null
+                : preProcessFiles(new ArrayList<>(ranges.values()), preprocessor);
+        // The loaders MERGE on indexed properties only if the schema is there
+        long start = System.nanoTime();
+        SchemaBootstrap.ensureSchema(db);
+        metrics.timer("schema").update(System.nanoTime() - start);
         // When all files have been processed we ingest the database
-        ingestDatabase(path);
+        Map<String, Long> rows = ingestDatabase(path);
         // and delete them after the ingestion
-        deleteTempFiles(tempFiles);
+        if (tempFiles != null) {
+            deleteTempFiles(tempFiles);
+        }
+        if (rows != null) {
+            recordIngestion(state, rows);
+        } else {
+            ingestPending = true;
+        }
     }
 
     /**
-     * Writes down a result from Neo4j to a log file with the name of the
-     * programmer. Query RETURNS: a:Author, r:Reviewer, p:Paper
+     * Has the queries run on a projection of the graph from now on. It is
+     * mapped from the snapshot file if that was taken of this same store at
+     * the current ingestion state, or else built from the database and saved
+     * to it.
      *
-     * @param result
-     * @return
-     * @throws IOException
+     * @param snapshot
      */
-    private void writeQuery1ResultFile(ResourceIterator<Map<String, Object>> iter)
-            throws IOException {
-        Map<String, Object> next;
-        String paper = "";
-        ArrayList<String> authors = new ArrayList<>();
-        String reviewer = "";
-        String result = "Q1: ";
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fout, true))) {
-            // We append the name of the paper first
-            if (iter.hasNext()) {
-                next = iter.next();
-                paper = (String) ((Node) next.get("p")).getProperty("title");
-                result += paper;
-                // And start to add authors and reviewers to their collections
-                authors.add((String) ((Node) next.get("a")).getProperty("surname"));
-                reviewer = (String) ((Node) next.get("r")).getProperty("surname");
+    public void openProjection(File snapshot) {
+        long fingerprint;
+        try {
+            fingerprint = new IngestState(ingestStateFile).fingerprint(
+                    BulkImporter.storeId(storeDir));
+        } catch (IOException ex) {
+            Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        long start = System.nanoTime();
+        GraphProjection opened = null;
+        if (!ingestPending) {
+            try {
+                opened = GraphProjection.load(snapshot, fingerprint);
+            } catch (IOException ex) {
+                // We build it again
+                Logger.getLogger(Neo4jApp.class.getName()).log(Level.WARNING, null, ex);
             }
+        }
+        if (opened != null) {
+            metrics.timer("projection.load").update(System.nanoTime() - start);
+            System.out.println(opened + ", mapped from " + snapshot + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms\n");
+        } else {
+            opened = GraphProjection.build(db, fingerprint);
+            metrics.timer("projection.build").update(System.nanoTime() - start);
+            System.out.println(opened + ", built in "
+                    + (System.nanoTime() - start) / 1000000 + " ms\n");
+            // The store of a failed ingestion changes again when it resumes
+            if (!ingestPending) {
+                try {
+                    opened.save(snapshot);
+                } catch (IOException ex) {
+                    Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        projection = opened;
+    }
 
-            // Now we iterate over the rest of the Resources
-            while (iter.hasNext()) {
-                next = iter.next();
-                authors.add((String) ((Node) next.get("a")).getProperty("surname"));
+    private void recordIngestion(IngestState state, Map<String, Long> rows) {
+        try {
+            for (Map.Entry<String, Long> loaded : rows.entrySet()) {
+                FileRange range = ranges.get(loaded.getKey());
+                if (range != null) {
+                    state.record(range, loaded.getValue());
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Neo4jApp.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Populates an empty store at storeDir with the csv files in path through
+     * the batch inserter. It must run before the embedded database is opened
+     * on the same store.
+     *
+     * @param storeDir
+     * @param path
+     * @param preprocessor
+     * @param ingestStateFile where the files ingested are recorded
+     * @param metrics where the import is timed and counted
+     * @throws IOException
+     */
+    static void bulkPopulate(String storeDir, String path, ParallelPreprocessor preprocessor,
+            File ingestStateFile, Metrics metrics) throws IOException {
+        IngestState state = new IngestState(ingestStateFile);
+        state.reset();
+        Map<String, FileRange> ranges = new HashMap<>();
+        for (File csv : listCsvFiles(path)) {
+            ranges.put(csv.getName(), FileRange.whole(csv));
+        }
+        File[] tempFiles = preProcessFiles(new ArrayList<>(ranges.values()), preprocessor);
+        Map<String, Long> rows;
+        long start = System.nanoTime();
+        try {
+            BulkImporter importer = new BulkImporter(storeDir);
+            rows = importer.importAll(path);
+            metrics.count("nodes.created", importer.getNodesCreated());
+            metrics.count("relationships.created", importer.getRelationshipsCreated());
+        } finally {
+            metrics.timer("load.bulk").update(System.nanoTime() - start);
+            deleteTempFiles(tempFiles);
+        }
+        for (Map.Entry<String, Long> imported : rows.entrySet()) {
+            metrics.count("rows.in", imported.getValue());
+            FileRange range = ranges.get(imported.getKey());
+            if (range != null) {
+                state.record(range, imported.getValue());
             }
-            result += "," + authors.toString() + "," + reviewer;
-            System.out.println(
-                    "\n===========================\n"
-                    + "Consulta 1 devuelve: \n"
-                    + "===========================\n"
-                    + "autor: " + authors.toString()
-                    + "\n"
-                    + "reviewer: " + reviewer + "\n"
-                    + "paper: " + paper
-            );
-            // We now write the result to file
-            bw.write(result);
-            bw.newLine();
-            System.out.println("File succesfully written: " + fout.getAbsolutePath() + "\n");
+        }
+    }
+
+    /**
+     * Writes down a result from Neo4j to a log file with the name of the
+     * programmer. Query RETURNS: a:Author, r:Reviewer, p:Paper
+     *
+     * @param iter
+     * @param result where the rows go: the paper and reviewer of the first
+     * row, and every author
+     * @throws IOException
+     */
+    private void writeQuery1ResultFile(ResourceIterator<Map<String, Object>> iter,
+            ResultSink.Result result) throws IOException {
+        while (iter.hasNext()) {
+            Map<String, Object> next = iter.next();
+            result.row(property(next, "p", "title"), property(next, "a", "surname"),
+                    property(next, "r", "surname"));
         }
     }
 
@@ -305,45 +618,15 @@ public class Neo4jApp {
      * Writes down a result from Neo4j to a log file with the name of the
      * programmer. Query RETURNS: c:Conference p:Paper
      *
+     * @param iter
      * @param result
-     * @return
      * @throws IOException
      */
-    private void writeQuery2ResultFile(ResourceIterator<Map<String, Object>> iter)
-            throws IOException {
-        Map<String, Object> next;
-        ArrayList<String> papers = new ArrayList<>();
-        String conference = "";
-        String result = "Q2: ";
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fout, true))) {
-            // We append the name of the conference first
-            if (iter.hasNext()) {
-                next = iter.next();
-                conference = (String) ((Node) next.get("c")).getProperty("name");
-                result += conference;
-                // And start to add papers to its collection
-                papers.add((String) ((Node) next.get("p")).getProperty("title"));
-            }
-
-            // Now we iterate over the rest of the Resources
-            while (iter.hasNext()) {
-                next = iter.next();
-                System.out.println("");
-                papers.add((String) ((Node) next.get("p")).getProperty("title"));
-            }
-            result += "," + papers.toString();
-            System.out.println(
-                    "\n===========================\n"
-                    + "Consulta 2 devuelve: \n"
-                    + "===========================\n"
-                    + "conference: " + conference
-                    + "\n"
-                    + "paper: " + papers.toString()
-            );
-            // We now write the result to file
-            bw.write(result);
-            bw.newLine();
-            System.out.println("File succesfully written: " + fout.getAbsolutePath() + "\n");
+    private void writeQuery2ResultFile(ResourceIterator<Map<String, Object>> iter,
+            ResultSink.Result result) throws IOException {
+        while (iter.hasNext()) {
+            Map<String, Object> next = iter.next();
+            result.row(property(next, "c", "name"), property(next, "p", "title"));
         }
     }
 
@@ -351,44 +634,15 @@ public class Neo4jApp {
      * Writes down a result from Neo4j to a log file with the name of the
      * programmer. Query RETURNS: a:Author p:Paper
      *
+     * @param iter
      * @param result
-     * @return
      * @throws IOException
      */
-    private void writeQuery3ResultFile(ResourceIterator<Map<String, Object>> iter)
-            throws IOException {
-        Map<String, Object> next;
-        String author = "";
-        ArrayList<String> papers = new ArrayList<>();
-        String result = "Q3: ";
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fout, true))) {
-            // We append the surname of the author first
-            if (iter.hasNext()) {
-                next = iter.next();
-                author = (String) ((Node) next.get("a")).getProperty("surname");
-                result += author;
-                // And start to add papers to its collection
-                papers.add((String) ((Node) next.get("p")).getProperty("title"));
-            }
-
-            // Now we iterate over the rest of the Resources
-            while (iter.hasNext()) {
-                next = iter.next();
-                papers.add((String) ((Node) next.get("p")).getProperty("title"));
-            }
-            result += "," + papers.toString();
-            System.out.println(
-                    "\n===========================\n"
-                    + "Consulta 3 devuelve: \n"
-                    + "===========================\n"
-                    + "autor: " + author
-                    + "\n"
-                    + "paper: " + papers.toString()
-            );
-            // We now write the result to file
-            bw.write(result);
-            bw.newLine();
-            System.out.println("File succesfully written: " + fout.getAbsolutePath() + "\n");
+    private void writeQuery3ResultFile(ResourceIterator<Map<String, Object>> iter,
+            ResultSink.Result result) throws IOException {
+        while (iter.hasNext()) {
+            Map<String, Object> next = iter.next();
+            result.row(property(next, "a", "surname"), property(next, "p", "title"));
         }
     }
 
@@ -396,36 +650,291 @@ public class Neo4jApp {
      * Writes down a result from Neo4j to a log file with the name of the
      * programmer. Query RETURNS: p:Paper a:Author r:Reviewer
      *
-     * @param result
+     * @param iter
+     * @param result where the rows go, one line per row
+     * @throws IOException
+     */
+    private void writeQuery4ResultFile(ResourceIterator<Map<String, Object>> iter,
+            ResultSink.Result result) throws IOException {
+        while (iter.hasNext()) {
+            Map<String, Object> next = iter.next();
+            result.row(property(next, "p", "title"), property(next, "a", "surname"),
+                    property(next, "r", "surname"));
+        }
+    }
+
+    private static String property(Map<String, Object> row, String column, String key) {
+        return String.valueOf(((Node) row.get(column)).getProperty(key));
+    }
+
+    private void printWritten(String summary) {
+        System.out.println(
+                "\n===========================\n"
+                + summary + "\n"
+                + "==========================="
+        );
+        System.out.println("Results streamed to: " + fout.getAbsolutePath() + "\n");
+    }
+
+    /**
+     * The sink is opened on the first result, so that the results file and
+     * format can still be changed before.
+     *
+     * @return
+     * @throws IOException
+     */
+    synchronized ResultSink results() throws IOException {
+        if (results == null) {
+            results = new ResultSink(fout, resultFormat, RESULT_QUEUE_CHUNKS, metrics);
+        }
+        return results;
+    }
+
+    /**
+     * Starts the result of one of the queries, with its columns.
+     *
+     * @param query Q1 to Q4
+     * @param buffered whether it is kept in memory, to be written later with
+     * ResultSink.write, instead of streamed to the results file
      * @return
      * @throws IOException
      */
-    private void writeQuery4ResultFile(ResourceIterator<Map<String, Object>> iter)
+    ResultSink.Result openResult(String query, boolean buffered) throws IOException {
+        ResultSink sink = results();
+        switch (query) {
+            case "Q1":
+                return sink.open(buffered, "Q1", true, "paper", "author", "reviewer");
+            case "Q2":
+                return sink.open(buffered, "Q2", true, "conference", "paper");
+            case "Q3":
+                return sink.open(buffered, "Q3", true, "author", "paper");
+            case "Q4":
+                return sink.open(buffered, "Q4", false, "paper", "author", "reviewer");
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
+    }
+
+    /**
+     * Runs one of the queries and writes its rows to the result, from the
+     * cache if it is there. It may be called from several threads at once.
+     * Parameters are trimmed and turned to lowercase, as the data is.
+     *
+     * @param query Q1 to Q4
+     * @param params the parameters of the query, in the order of runQn
+     * @param result
+     * @throws IOException
+     */
+    void run(String query, String[] params, ResultSink.Result result) throws IOException {
+        long start = System.nanoTime();
+        try {
+            runCached(query, params, result);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            metrics.timer("query." + query).update(elapsed);
+            if (ran.add(query)) {
+                metrics.timer("cold." + query).update(elapsed);
+            }
+            if (firstQueryDone.compareAndSet(false, true)) {
+                // Since the VM started, which is in millis
+                long sinceStart = System.currentTimeMillis()
+                        - ManagementFactory.getRuntimeMXBean().getStartTime();
+                metrics.timer("startup.first_query").update(sinceStart * 1000000);
+            }
+        }
+    }
+
+    private static String[] normalize(String[] params) {
+        String[] normalized = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            normalized[i] = params[i].trim().toLowerCase();
+        }
+        return normalized;
+    }
+
+    private void runCached(String query, String[] params, ResultSink.Result result)
             throws IOException {
-        Map<String, Object> next;
-        String author;
-        String paper;
-        String reviewer;
-        String result = "Q4: ";
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fout, true))) {
-            while (iter.hasNext()) {
-                next = iter.next();
-                paper = (String) ((Node) next.get("p")).getProperty("title");
-                author = (String) ((Node) next.get("a")).getProperty("surname");
-                reviewer = (String) ((Node) next.get("r")).getProperty("surname");
-                result += "[" + paper + ", " + author + ", " + reviewer + "]";
-                // We now write the result to file
-                bw.write(result);
-                bw.newLine();
-                // We start again
-                result = "Q4: ";
+        String[] normalized = normalize(params);
+        if (cache == null) {
+            execute(query, normalized, result, null);
+            return;
+        }
+        String key = ResultCache.key(query, normalized);
+        List<String[]> rows = cache.get(key);
+        if (rows != null) {
+            for (String[] row : rows) {
+                result.row(row);
+            }
+            return;
+        }
+        long generation = cache.generation();
+        Set<String> tags = ResultCache.tags(query, normalized);
+        result.record(cache.getMaxChars());
+        execute(query, normalized, result, tags);
+        if (result.getRecorded() != null) {
+            cache.put(key, result.getRecorded(), tags, generation);
+        }
+    }
+
+    /**
+     * Runs one of the queries in its own transaction and writes its rows to
+     * the result, or on the projection if there is one.
+     *
+     * @param tags if not null, the tags of the papers and authors query 4
+     * depends on are added to it, see ResultCache
+     */
+    private void execute(String query, String[] params, ResultSink.Result result,
+            Set<String> tags) throws IOException {
+        if (projection != null) {
+            projection.run(query, params, result, tags);
+            return;
+        }
+        if (pageSize > 0 && ("Q2".equals(query) || "Q3".equals(query))) {
+            String token = null;
+            do {
+                QueryPager.Page page = pager.page(query, params[0], token, pageSize);
+                for (String[] row : page.getRows()) {
+                    result.row(row);
+                }
+                token = page.getNext();
+            } while (token != null);
+            return;
+        }
+        try (Transaction tx = db.beginTx()) {
+            switch (query) {
+                case "Q1":
+                    writeQuery1ResultFile(engine.execute(Q1, Collections.<String, Object>singletonMap(
+                            "paperName", params[0])).javaIterator(), result);
+                    break;
+                case "Q2":
+                    writeQuery2ResultFile(engine.execute(Q2, Collections.<String, Object>singletonMap(
+                            "conferenceName", params[0])).javaIterator(), result);
+                    break;
+                case "Q3":
+                    writeQuery3ResultFile(engine.execute(Q3, Collections.<String, Object>singletonMap(
+                            "autorName", params[0])).javaIterator(), result);
+                    break;
+                case "Q4":
+                    int journalVolume = Integer.parseInt(params[1]);
+                    ResourceIterator<Map<String, Object>> iter;
+                    if (nativeQ4) {
+                        iter = IteratorUtil.asResourceIterator(NativeQuery4.run(db, params[0],
+                                String.valueOf(journalVolume)).iterator());
+                    } else {
+                        iter = executeQ4(params[0], journalVolume).javaIterator();
+                    }
+                    writeQuery4ResultFile(iter, result);
+                    if (tags != null) {
+                        addQ4Tags(params[0], journalVolume, tags);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query " + query);
             }
-            System.out.println(
-                    "\n===========================\n"
-                    + "Consulta 4 escrita: \n"
-                    + "==========================="
-            );
-            System.out.println("File succesfully written: " + fout.getAbsolutePath() + "\n");
+            tx.success();
+        }
+    }
+
+    /**
+     * Reads a page of the rows of query 2 or 3 from the database, in a
+     * transaction of its own. Parameters are trimmed and turned to lowercase,
+     * as the data is. The cache and the projection are not used.
+     *
+     * @param query Q2 or Q3
+     * @param param conference name or author surname
+     * @param token the next token of the page before, null for the first
+     * @param size rows of the page at most
+     * @return the rows and the token of the next page
+     */
+    public QueryPager.Page page(String query, String param, String token, int size) {
+        long start = System.nanoTime();
+        try {
+            return pager.page(query, param.trim().toLowerCase(), token, size);
+        } finally {
+            metrics.timer("page." + query).update(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs one of the queries again and again, past the result cache and
+     * without writing its rows, to time it once the store is warm.
+     *
+     * @param query Q1 to Q4
+     * @param runs
+     * @param params the parameters of the query, in the order of runQn
+     */
+    public void probe(String query, int runs, String... params) {
+        String[] normalized = normalize(params);
+        if (runs > 0) {
+            probed.add(query);
+        }
+        try {
+            for (int i = 0; i < runs; i++) {
+                try (ResultSink.Result result = openResult(query, true)) {
+                    long start = System.nanoTime();
+                    execute(query, normalized, result, null);
+                    metrics.timer("warm." + query).update(System.nanoTime() - start);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Probe of " + query + " failed\n");
+        }
+    }
+
+    /**
+     * Runs each query once with parameters that match nothing, so that the
+     * engine has their plans cached before they are run for real.
+     */
+    public void planQueries() {
+        String[][] params = {{"Q1", ""}, {"Q2", ""}, {"Q3", ""}, {"Q4", "", "0"}};
+        for (String[] query : params) {
+            try (ResultSink.Result result = openResult(query[0], true)) {
+                execute(query[0], Arrays.copyOfRange(query, 1, query.length), result, null);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.err.println("Planning " + query[0] + " failed\n");
+            }
+        }
+    }
+
+    /**
+     * @return the time to the first query and the latency of the first and
+     * of the probe runs of each query, a line each
+     */
+    public String latencies() {
+        StringBuilder out = new StringBuilder("Latencies:\n");
+        if (!firstQueryDone.get()) {
+            return out.append("  no query run\n").toString();
+        }
+        out.append(String.format("  first query %.1f ms after the VM started%n",
+                metrics.timer("startup.first_query").getMaxMillis()));
+        // Only the timers of the queries run, not to add empty ones
+        for (String query : new String[]{"Q1", "Q2", "Q3", "Q4"}) {
+            if (!ran.contains(query)) {
+                continue;
+            }
+            out.append(String.format("  %s cold %8.2f ms", query,
+                    metrics.timer("cold." + query).getMaxMillis()));
+            if (probed.contains(query)) {
+                Metrics.Timer warm = metrics.timer("warm." + query);
+                out.append(String.format(", warm %8.2f ms mean, %8.2f ms p50 of %d runs",
+                        warm.getMeanMillis(), warm.getPercentileMillis(50), warm.getCount()));
+            }
+            out.append(String.format("%n"));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Runs a query and streams its result to the results file.
+     *
+     * @return rows of the result
+     */
+    private long runAndWrite(String query, String... params) throws IOException {
+        try (ResultSink.Result result = openResult(query, false)) {
+            run(query, params, result);
+            return result.getRows();
         }
     }
 
@@ -437,16 +946,8 @@ public class Neo4jApp {
      * @throws java.io.IOException
      */
     public void runQ1(String paperName) throws IOException {
-        ExecutionResult result;
-        ResourceIterator iter;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute(
-                    "MATCH (a:Author)-[WROTE]->(p:Paper)<-[REVIEWED]-(r:Reviewer)\n"
-                    + "WHERE p.title ='" + paperName + "' \n"
-                    + "RETURN p,a,r;");
-            iter = result.javaIterator();
-            tx.success();
-            writeQuery1ResultFile(iter);
+        try {
+            printWritten("Consulta 1 devuelve: " + runAndWrite("Q1", paperName) + " filas");
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction runQ1:"
@@ -462,16 +963,8 @@ public class Neo4jApp {
      * @throws java.io.IOException
      */
     public void runQ2(String conferenceName) throws IOException {
-        ExecutionResult result;
-        ResourceIterator iter;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute(
-                    "MATCH (c:Conference)-[HAS]->(p:Paper)\n"
-                    + "WHERE c.name ='" + conferenceName + "'\n"
-                    + "RETURN c,p;");
-            iter = result.javaIterator();
-            tx.success();
-            writeQuery2ResultFile(iter);
+        try {
+            printWritten("Consulta 2 devuelve: " + runAndWrite("Q2", conferenceName) + " filas");
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction runQ2: conferences by name failed\n");
@@ -486,15 +979,8 @@ public class Neo4jApp {
      * @throws java.io.IOException
      */
     public void runQ3(String autorName) throws IOException {
-        ExecutionResult result;
-        ResourceIterator iter;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute(
-                    "MATCH (a:Author {surname:'" + autorName + "'})-[:WROTE]->(p:Paper)\n"
-                    + "RETURN a,p;");
-            iter = result.javaIterator();
-            tx.success();
-            writeQuery3ResultFile(iter);
+        try {
+            printWritten("Consulta 3 devuelve: " + runAndWrite("Q3", autorName) + " filas");
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction runQ3:"
@@ -510,17 +996,9 @@ public class Neo4jApp {
      * @param journalVolume
      */
     public void runQ4(String journalName, int journalVolume) {
-        ExecutionResult result;
-        ResourceIterator iter;
-        try (Transaction tx = db.beginTx()) {
-            result = engine.execute(
-                    "MATCH ("
-                    + "j:Journal {volume:'" + journalVolume + "',name:'" + journalName + "'}"
-                    + ")-[:HAS]->(p:Paper)<-[:WROTE]-(a:Author)-[:IS_FRIEND]->(r:Reviewer)-[:REVIEWED]->(p)\n"
-                    + "RETURN p,a,r;");
-            iter = result.javaIterator();
-            tx.success();
-            writeQuery4ResultFile(iter);
+        try {
+            printWritten("Consulta 4 escrita: "
+                    + runAndWrite("Q4", journalName, String.valueOf(journalVolume)) + " filas");
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Transaction runQ4:"
@@ -528,6 +1006,69 @@ public class Neo4jApp {
         }
     }
 
+    private void addQ4Tags(String journalName, int journalVolume, Set<String> tags) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("journalName", journalName);
+        params.put("journalVolume", String.valueOf(journalVolume));
+        ResourceIterator<Map<String, Object>> iter = engine.execute(Q4_DEPENDENCIES, params)
+                .javaIterator();
+        while (iter.hasNext()) {
+            Map<String, Object> row = iter.next();
+            tags.add("paper|" + row.get("title"));
+            for (Object author : (Iterable<?>) row.get("authors")) {
+                tags.add("friend|" + author);
+            }
+        }
+    }
+
+    private ExecutionResult executeQ4(String journalName, int journalVolume) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("journalName", journalName);
+        // Volumes are loaded from the csv as strings
+        params.put("journalVolume", String.valueOf(journalVolume));
+        return engine.execute(Q4, params);
+    }
+
+    /**
+     * Runs query 4 with both Cypher and the core API and checks that they
+     * return the same (paper, author, reviewer) rows.
+     *
+     * @param journalName
+     * @param journalVolume
+     * @return true if both return the same rows
+     */
+    public boolean verifyQ4(String journalName, int journalVolume) {
+        try (Transaction tx = db.beginTx()) {
+            List<String> cypher = new ArrayList<>();
+            ResourceIterator<Map<String, Object>> iter
+                    = executeQ4(journalName, journalVolume).javaIterator();
+            while (iter.hasNext()) {
+                cypher.add(q4Row(iter.next()));
+            }
+            List<String> nativeRows = new ArrayList<>();
+            for (Map<String, Object> row : NativeQuery4.run(db, journalName,
+                    String.valueOf(journalVolume))) {
+                nativeRows.add(q4Row(row));
+            }
+            tx.success();
+            Collections.sort(cypher);
+            Collections.sort(nativeRows);
+            if (cypher.equals(nativeRows)) {
+                System.out.println("Query 4 engines agree: " + cypher.size() + " rows\n");
+                return true;
+            }
+            System.err.println("Query 4 engines disagree:\n"
+                    + "cypher: " + cypher + "\n"
+                    + "native: " + nativeRows + "\n");
+            return false;
+        }
+    }
+
+    private static String q4Row(Map<String, Object> row) {
+        return ((Node) row.get("p")).getId() + "-" + ((Node) row.get("a")).getId()
+                + "-" + ((Node) row.get("r")).getId();
+    }
+
     /**
      *
      * @param args
@@ -548,14 +1089,151 @@ public class Neo4jApp {
         String Q3Param = p.getProperty("Q3_param");
         String Q4Param1 = p.getProperty("Q4_param1");
         int Q4Param2 = Integer.parseInt(p.getProperty("Q4_param2"));
+        boolean nativeQ4 = "native".equals(p.getProperty("Q4_engine", "cypher"));
+        boolean verifyQ4 = Boolean.parseBoolean(p.getProperty("Q4_verify", "false"));
+        ResultFormat resultFormat = ResultFormat.parse(p.getProperty("result_format", "lines"));
+        long cacheChars = Long.parseLong(p.getProperty("result_cache_chars", "0"));
+        String jobsFile = p.getProperty("query_jobs_file");
+        int queryThreads = Integer.parseInt(p.getProperty("query_threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        int batchSize = Integer.parseInt(p.getProperty("load_batch_size", "1000"));
+        String checkpointFile = p.getProperty("load_checkpoint_file", "Neo4jAppLoad.checkpoint");
+
+        int preprocessWorkers = Integer.parseInt(p.getProperty("preprocess_workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long preprocessSplitMB = Long.parseLong(p.getProperty("preprocess_split_mb", "64"));
+        ParallelPreprocessor preprocessor = new ParallelPreprocessor(preprocessWorkers,
+                preprocessSplitMB * 1024 * 1024);
+        String importMode = p.getProperty("import_mode", "transactional");
+        boolean bulkImport = "batch".equals(importMode);
+        int queueCapacity = Integer.parseInt(p.getProperty("stream_queue_batches", "4"));
+        File ingestStateFile = new File(p.getProperty("ingest_state_file", "Neo4jAppIngest.state"));
+        File metricsFile = new File(p.getProperty("metrics_file", "Neo4jAppMetrics.log"));
+        long metricsInterval = Long.parseLong(p.getProperty("metrics_interval_s", "10"));
+        boolean metricsJmx = Boolean.parseBoolean(p.getProperty("metrics_jmx", "true"));
+        int pageSize = Integer.parseInt(p.getProperty("query_page_size", "0"));
+        boolean useProjection = Boolean.parseBoolean(p.getProperty("query_projection", "false"));
+        File projectionFile = new File(p.getProperty("projection_snapshot_file",
+                "Neo4jAppProjection.snapshot"));
+        boolean analytics = Boolean.parseBoolean(p.getProperty("analytics", "false"));
+        int analyticsTopK = Integer.parseInt(p.getProperty("analytics_top_k", "5"));
+        String analyticsFile = p.getProperty("analytics_file", "Neo4jAppAnalytics.log");
+        boolean analyticsWriteBack = Boolean.parseBoolean(p.getProperty("analytics_write_back",
+                "false"));
+        int analyticsWorkers = Integer.parseInt(p.getProperty("analytics_workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long analyticsProgress = Long.parseLong(p.getProperty("analytics_progress_s", "5"));
+        boolean memorySizing = Boolean.parseBoolean(p.getProperty("memory_sizing", "true"));
+        long mappedMemoryMB = Long.parseLong(p.getProperty("mapped_memory_mb", "0"));
+        boolean warmup = Boolean.parseBoolean(p.getProperty("warmup", "false"));
+        int warmupWorkers = Integer.parseInt(p.getProperty("warmup_workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int probeRuns = Integer.parseInt(p.getProperty("latency_probe_runs", "3"));
+
+        Metrics metrics = new Metrics();
+        if (metricsJmx) {
+            metrics.registerMBean();
+        }
+        if (metricsInterval > 0) {
+            metrics.startDump(metricsFile, metricsInterval, TimeUnit.SECONDS);
+        }
+        preprocessor.setMetrics(metrics);
 
         // Start the program
-        Neo4jApp neo4jApp = new Neo4jApp(DB_PATH);
-        neo4jApp.populate(CSVPath);
-        // We execute the queries with the given parameters
-        neo4jApp.runQ1(Q1Param);
-        neo4jApp.runQ2(Q2Param);
-        neo4jApp.runQ3(Q3Param);
-        neo4jApp.runQ4(Q4Param1, Q4Param2);
+        if (bulkImport && BulkImporter.storeExists(DB_PATH)) {
+            System.out.println("There is already a store in " + DB_PATH
+                    + ", the transactional import will be used instead\n");
+            bulkImport = false;
+        }
+        if (bulkImport) {
+            // The store must be written before the database is opened on it
+            bulkPopulate(DB_PATH, CSVPath, preprocessor, ingestStateFile, metrics);
+        }
+        Map<Setting<?>, String> config = Collections.emptyMap();
+        if (memorySizing) {
+            MemorySizing sizing = MemorySizing.of(new File(DB_PATH), mappedMemoryMB);
+            System.out.println(sizing + "\n");
+            config = sizing.getSettings();
+        }
+        long start = System.nanoTime();
+        Neo4jApp neo4jApp = new Neo4jApp(DB_PATH, config);
+        metrics.timer("startup.open").update(System.nanoTime() - start);
+        neo4jApp.setMetrics(metrics);
+        neo4jApp.setBatchSize(batchSize);
+        neo4jApp.setCheckpointFile(new File(checkpointFile));
+        neo4jApp.setPreprocessor(preprocessor);
+        neo4jApp.setStreaming("streaming".equals(importMode));
+        neo4jApp.setQueueCapacity(queueCapacity);
+        neo4jApp.setIngestStateFile(ingestStateFile);
+        neo4jApp.setNativeQ4(nativeQ4);
+        neo4jApp.setPageSize(pageSize);
+        neo4jApp.setResultFormat(resultFormat);
+        if (cacheChars > 0) {
+            neo4jApp.setResultCache(new ResultCache(cacheChars));
+        }
+        if (!bulkImport) {
+            neo4jApp.populate(CSVPath);
+        }
+        if (warmup) {
+            StoreWarmer warmer = new StoreWarmer(neo4jApp.getDatabase(), new File(DB_PATH),
+                    warmupWorkers);
+            long warmupStart = System.nanoTime();
+            warmer.warm();
+            neo4jApp.planQueries();
+            metrics.timer("startup.warmup").update(System.nanoTime() - warmupStart);
+            System.out.println(warmer + "\n");
+        }
+        if (useProjection) {
+            neo4jApp.openProjection(projectionFile);
+        }
+        if (jobsFile != null) {
+            // We execute every job of the file instead of the single queries
+            new BatchQueryRunner(neo4jApp, queryThreads, queryThreads * 16)
+                    .run(new File(jobsFile));
+        } else {
+            // We execute the queries with the given parameters
+            neo4jApp.runQ1(Q1Param);
+            neo4jApp.runQ2(Q2Param);
+            neo4jApp.runQ3(Q3Param);
+            neo4jApp.runQ4(Q4Param1, Q4Param2);
+            // And again, once warm, only to time them
+            neo4jApp.probe("Q1", probeRuns, Q1Param);
+            neo4jApp.probe("Q2", probeRuns, Q2Param);
+            neo4jApp.probe("Q3", probeRuns, Q3Param);
+            neo4jApp.probe("Q4", probeRuns, Q4Param1, String.valueOf(Q4Param2));
+        }
+        System.out.println(neo4jApp.latencies());
+        if (verifyQ4) {
+            neo4jApp.verifyQ4(Q4Param1, Q4Param2);
+        }
+        if (analytics) {
+            GraphProjection graph = neo4jApp.getProjection();
+            if (graph == null) {
+                graph = GraphProjection.build(neo4jApp.getDatabase(), 0);
+            }
+            CoauthorAnalytics stats = new CoauthorAnalytics(graph, analyticsWorkers,
+                    analyticsTopK);
+            stats.setMetrics(metrics);
+            stats.setProgressInterval(analyticsProgress);
+            stats.compute();
+            if (!analyticsFile.trim().isEmpty()) {
+                try (ResultSink sink = new ResultSink(new File(analyticsFile), resultFormat,
+                        RESULT_QUEUE_CHUNKS, metrics)) {
+                    stats.write(sink);
+                }
+                System.out.println("Analytics streamed to: " + analyticsFile + "\n");
+            }
+            if (analyticsWriteBack) {
+                stats.writeBack(neo4jApp.getDatabase(), batchSize);
+            }
+            System.out.println(stats + "\n");
+        }
+        System.out.println(neo4jApp.getPlanCacheMonitor());
+        if (neo4jApp.getResultCache() != null) {
+            System.out.println(neo4jApp.getResultCache());
+        }
+        System.out.println(metrics);
+        metrics.stop(metricsFile);
     }
 }
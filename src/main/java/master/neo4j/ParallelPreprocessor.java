@@ -0,0 +1,243 @@
+package master.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Preprocesses csv files on a fork-join pool. Files are processed at the same
+ * time, and files bigger than the split size are cut into line aligned byte
+ * ranges that are normalized in parallel into part files, which are then
+ * concatenated in order. Only the given range of each file is processed, so
+ * that incremental ingestions only preprocess the rows appended.
+ *
+ * Ranges are cut at line breaks, so a big file can't have line breaks inside
+ * quoted fields. Files smaller than the split size are not cut and may have
+ * them.
+ *
+ * @author fran
+ */
+class ParallelPreprocessor {
+
+    private final int workers;
+    private final long splitSize;
+    private Metrics metrics = new Metrics();
+
+    /**
+     * @param workers threads of the pool
+     * @param splitSize files bigger than this many bytes are cut in ranges
+     * of this size
+     */
+    public ParallelPreprocessor(int workers, long splitSize) {
+        if (workers <= 0 || splitSize <= 0) {
+            throw new IllegalArgumentException("Workers and split size must be positive");
+        }
+        this.workers = workers;
+        this.splitSize = splitSize;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Normalizes the given range of every input file into processed_ + its
+     * name in the working directory, header included. A file that fails is
+     * reported and left out.
+     *
+     * @param inputs
+     * @return the processed files, in the order of the inputs
+     */
+    public List<File> processAll(List<FileRange> inputs) {
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            List<FileTask> tasks = new ArrayList<>();
+            for (FileRange input : inputs) {
+                FileTask task = new FileTask(input,
+                        new File("processed_" + input.getFile().getName()));
+                pool.execute(task);
+                tasks.add(task);
+            }
+            List<File> outputs = new ArrayList<>();
+            for (FileTask task : tasks) {
+                try {
+                    System.out.println("File succesfully written: "
+                            + task.output.getAbsolutePath() + " (" + task.join() + " rows)\n");
+                    outputs.add(task.output);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                    System.err.println("Hay ficheros corruptos con nombre 'processed_*'"
+                            + " eliminelos, para poder "
+                            + "ejecutar el programa correctamente");
+                }
+            }
+            return outputs;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Processes one file, cutting it in ranges if it is big.
+     */
+    private class FileTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileRange range;
+        private final File output;
+
+        FileTask(FileRange range, File output) {
+            this.range = range;
+            this.output = output;
+        }
+
+        @Override
+        protected Long compute() {
+            long start = System.nanoTime();
+            long rows = preprocess();
+            metrics.timer("preprocess." + range.getFile().getName()).update(System.nanoTime() - start);
+            metrics.count("rows.preprocessed", rows);
+            return rows;
+        }
+
+        private long preprocess() {
+            File input = range.getFile();
+            try {
+                System.out.println("PreProcessing file" + input.getName());
+                List<Long> bounds = lineAlignedBounds(range);
+                if (bounds.size() == 2) {
+                    RangeTask whole = new RangeTask(input, bounds.get(0), bounds.get(1), output, true);
+                    whole.compute();
+                    return whole.rows;
+                }
+                List<RangeTask> ranges = new ArrayList<>();
+                for (int i = 0; i < bounds.size() - 1; i++) {
+                    ranges.add(new RangeTask(input, bounds.get(i), bounds.get(i + 1),
+                            new File(output.getPath() + ".part" + i), i == 0));
+                }
+                ForkJoinTask.invokeAll(ranges);
+                long rows = 0;
+                List<File> parts = new ArrayList<>();
+                for (RangeTask task : ranges) {
+                    rows += task.rows;
+                    parts.add(task.part);
+                }
+                concatenate(parts, output);
+                return rows;
+            } catch (IOException ex) {
+                throw new IllegalStateException("Can't preprocess " + input, ex);
+            }
+        }
+    }
+
+    /**
+     * Normalizes the bytes [start, end) of a file into a part file, after the
+     * header of the file if it is the first part.
+     */
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File input;
+        private final long start;
+        private final long end;
+        private final File part;
+        private final boolean withHeader;
+        private long rows;
+
+        RangeTask(File input, long start, long end, File part, boolean withHeader) {
+            this.input = input;
+            this.start = start;
+            this.end = end;
+            this.part = part;
+            this.withHeader = withHeader;
+        }
+
+        @Override
+        protected void compute() {
+            try (CsvRecords csv = new MappedCsvReader(new FileRange(input, start, end));
+                    OutputStream out = new FileOutputStream(part)) {
+                CsvPreprocessor preprocessor = new CsvPreprocessor(out);
+                if (withHeader && start == 0) {
+                    rows = preprocessor.process(csv);
+                    return;
+                }
+                if (withHeader) {
+                    // Only the new rows are processed, the header is at the
+                    // beginning of the file
+                    try (CsvTokenizer header = CsvTokenizer.openHeader(input)) {
+                        preprocessor.writeHeader(header);
+                    }
+                }
+                rows = preprocessor.processRows(csv);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Can't preprocess " + input
+                        + " from byte " + start + " to " + end, ex);
+            }
+        }
+    }
+
+    /**
+     * Cuts the range every splitSize bytes, moving each cut forward to the
+     * start of the next line.
+     *
+     * @return offsets of the cuts, starting with the start of the range and
+     * ending with its end
+     */
+    private List<Long> lineAlignedBounds(FileRange range) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(range.getStart());
+        long size = range.getEnd();
+        try (RandomAccessFile raf = new RandomAccessFile(range.getFile(), "r")) {
+            long cut = range.getStart() + splitSize;
+            while (cut < size) {
+                raf.seek(cut);
+                int b;
+                // A '\n' byte is never part of a multibyte UTF-8 character
+                while ((b = raf.read()) != -1 && b != '\n') {
+                    cut++;
+                }
+                cut++;
+                if (cut >= size) {
+                    break;
+                }
+                bounds.add(cut);
+                cut += splitSize;
+            }
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    private static void concatenate(List<File> parts, File output) throws IOException {
+        try (FileChannel out = new FileOutputStream(output).getChannel()) {
+            for (File part : parts) {
+                try (FileChannel in = new FileInputStream(part).getChannel()) {
+                    long position = 0;
+                    long size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                if (!part.delete()) {
+                    System.err.println("Part file " + part + " could not be deleted");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package master.neo4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.neo4j.cypher.ExecutionEngine;
+import org.neo4j.cypher.StringCacheMonitor;
+import org.neo4j.kernel.api.Statement;
+
+/**
+ * Counts the hits and misses of the execution plan cache of an
+ * ExecutionEngine. The plans are cached by query text, so a query only hits
+ * the cache if its parameters are passed apart instead of concatenated.
+ *
+ * @author fran
+ */
+public class PlanCacheMonitor implements StringCacheMonitor {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    /**
+     * Creates a monitor listening to the plan cache of the given engine.
+     *
+     * @param engine
+     * @return
+     */
+    public static PlanCacheMonitor register(ExecutionEngine engine) {
+        PlanCacheMonitor monitor = new PlanCacheMonitor();
+        engine.kernelMonitors().addMonitorListener(monitor);
+        return monitor;
+    }
+
+    @Override
+    public void cacheHit(String query) {
+        hits.incrementAndGet();
+    }
+
+    @Override
+    public void cacheMiss(String query) {
+        misses.incrementAndGet();
+    }
+
+    @Override
+    public void cacheFlushDetected(Statement statement) {
+        flushes.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return times the cache was emptied because the schema changed
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Plan cache: " + getHits() + " hits, " + getMisses() + " misses, "
+                + getFlushes() + " flushes";
+    }
+}
@@ -0,0 +1,154 @@
+package master.neo4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.neo4j.cypher.ExecutionEngine;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Reads the results of queries 2 and 3 a page at a time, each page in its
+ * own transaction, so that big conferences and prolific authors are read
+ * with the memory of a page and their first rows come without waiting for
+ * the rest.
+ *
+ * Rows come in the order of the ids of their two nodes, the conference or
+ * author and the paper, and a page ends with a token holding the ids of its
+ * last row. The next page starts right after them, so rows are neither
+ * repeated nor skipped across pages, whatever is written in between, as long
+ * as the nodes already read are not deleted. Tokens are opaque to callers.
+ *
+ * Relationships are not kept in id order, so each page still expands all the
+ * papers of the conference or author and keeps the pageSize that follow the
+ * token. Memory stays that of a page, but reading a whole result in small
+ * pages costs more time than in one go.
+ *
+ * @author fran
+ */
+class QueryPager {
+
+    private static final String Q2_PAGE
+            = "MATCH (c:Conference)-[:HAS]->(p:Paper)\n"
+            + "WHERE c.name = {conferenceName}\n"
+            + "AND (id(c) > {afterFirst} OR id(c) = {afterFirst} AND id(p) > {afterSecond})\n"
+            + "RETURN c, p\n"
+            + "ORDER BY id(c), id(p)\n"
+            + "LIMIT {pageSize};";
+    private static final String Q3_PAGE
+            = "MATCH (a:Author {surname:{autorName}})-[:WROTE]->(p:Paper)\n"
+            + "WHERE id(a) > {afterFirst} OR id(a) = {afterFirst} AND id(p) > {afterSecond}\n"
+            + "RETURN a, p\n"
+            + "ORDER BY id(a), id(p)\n"
+            + "LIMIT {pageSize};";
+
+    private final GraphDatabaseService db;
+    private final ExecutionEngine engine;
+
+    /**
+     * Rows of a page and the token of the next one.
+     */
+    static class Page {
+
+        private final List<String[]> rows;
+        private final String next;
+
+        Page(List<String[]> rows, String next) {
+            this.rows = rows;
+            this.next = next;
+        }
+
+        /**
+         * @return the rows, with the same columns as the query
+         */
+        public List<String[]> getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the token of the next page, or null if this is the last
+         */
+        public String getNext() {
+            return next;
+        }
+    }
+
+    public QueryPager(GraphDatabaseService db, ExecutionEngine engine) {
+        this.db = db;
+        this.engine = engine;
+    }
+
+    /**
+     * Reads one page, in a transaction of its own.
+     *
+     * @param query Q2 or Q3
+     * @param param conference name or author surname, normalized
+     * @param token where the page starts, null for the first one
+     * @param pageSize rows of the page at most
+     * @return
+     */
+    public Page page(String query, String param, String token, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        long[] after = parse(token);
+        Map<String, Object> params = new HashMap<>();
+        params.put("afterFirst", after[0]);
+        params.put("afterSecond", after[1]);
+        params.put("pageSize", pageSize);
+        String cypher;
+        String first;
+        String key;
+        switch (query) {
+            case "Q2":
+                cypher = Q2_PAGE;
+                params.put("conferenceName", param);
+                first = "c";
+                key = "name";
+                break;
+            case "Q3":
+                cypher = Q3_PAGE;
+                params.put("autorName", param);
+                first = "a";
+                key = "surname";
+                break;
+            default:
+                throw new IllegalArgumentException("Only Q2 and Q3 are paged, not " + query);
+        }
+        List<String[]> rows = new ArrayList<>(Math.min(pageSize, 1024));
+        Node last = null;
+        Node lastPaper = null;
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Map<String, Object>> iter = engine.execute(cypher, params)
+                    .javaIterator();
+            while (iter.hasNext()) {
+                Map<String, Object> row = iter.next();
+                last = (Node) row.get(first);
+                lastPaper = (Node) row.get("p");
+                rows.add(new String[]{String.valueOf(last.getProperty(key)),
+                    String.valueOf(lastPaper.getProperty("title"))});
+            }
+            tx.success();
+        }
+        if (rows.size() < pageSize) {
+            return new Page(rows, null);
+        }
+        return new Page(rows, last.getId() + ":" + lastPaper.getId());
+    }
+
+    private static long[] parse(String token) {
+        if (token == null) {
+            return new long[]{-1, -1};
+        }
+        int colon = token.indexOf(':');
+        try {
+            return new long[]{Long.parseLong(token.substring(0, colon)),
+                Long.parseLong(token.substring(colon + 1))};
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Not a page token: " + token, e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package master.neo4j;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the rows of the latest query results, keyed by query and parameters,
+ * up to a total number of chars. The least recently used results are evicted
+ * first.
+ *
+ * Every result depends on a few tags, each naming what the loaders may touch
+ * to change it:
+ *
+ * paper|title: rows of conferences.csv or journals.csv with that title
+ * conference|name: rows of conferences.csv with that conference
+ * journal|name|volume: rows of journals.csv with that journal volume
+ * wrote|surname: rows of conferences.csv or journals.csv with that author
+ * friend|surname: rows of friendships.csv with that author
+ *
+ * Q1 depends on its paper, Q2 on its conference, Q3 on the papers its author
+ * wrote, and Q4 on its journal volume, on every paper of it and on the
+ * friends of every author of those papers. When a batch is committed the
+ * results that depend on its rows are dropped. Results computed while a
+ * batch was being committed are not kept, as they may miss its rows.
+ *
+ * @author fran
+ */
+class ResultCache implements CsvBatchLoader.BatchListener {
+
+    // Chars counted for each row besides its values
+    private static final int ROW_OVERHEAD = 16;
+
+    private final long maxChars;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysByTag = new HashMap<>();
+    private long chars;
+    // Moves on with every batch committed
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private static class Entry {
+
+        private final List<String[]> rows;
+        private final Set<String> tags;
+        private final long chars;
+
+        Entry(List<String[]> rows, Set<String> tags, long chars) {
+            this.rows = rows;
+            this.tags = tags;
+            this.chars = chars;
+        }
+    }
+
+    /**
+     * @param maxChars chars the cached rows may take in total
+     */
+    public ResultCache(long maxChars) {
+        if (maxChars <= 0) {
+            throw new IllegalArgumentException("The cache size must be positive");
+        }
+        this.maxChars = maxChars;
+    }
+
+    public long getMaxChars() {
+        return maxChars;
+    }
+
+    /**
+     * @param query
+     * @param params normalized parameters
+     * @return the key of the result
+     */
+    public static String key(String query, String[] params) {
+        StringBuilder key = new StringBuilder(query);
+        for (String param : params) {
+            key.append('\0').append(param);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Tags the result of a query depends on that follow from its parameters.
+     * Q4 also depends on the papers of the journal volume and their authors,
+     * which are only known once it runs.
+     *
+     * @param query
+     * @param params normalized parameters
+     * @return
+     */
+    public static Set<String> tags(String query, String[] params) {
+        Set<String> tags = new HashSet<>();
+        switch (query) {
+            case "Q1":
+                tags.add("paper|" + params[0]);
+                break;
+            case "Q2":
+                tags.add("conference|" + params[0]);
+                break;
+            case "Q3":
+                tags.add("wrote|" + params[0]);
+                break;
+            case "Q4":
+                tags.add("journal|" + params[0] + "|" + params[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
+        return tags;
+    }
+
+    /**
+     * @param key
+     * @return the cached rows, or null
+     */
+    public synchronized List<String[]> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.rows;
+    }
+
+    /**
+     * @return to be given to put, taken before the query runs
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches the rows of a result, evicting the least recently used ones if
+     * needed, unless some batch was committed since the generation was taken.
+     *
+     * @param key
+     * @param rows
+     * @param tags what the result depends on
+     * @param generation taken before the query ran
+     */
+    public synchronized void put(String key, List<String[]> rows, Set<String> tags,
+            long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        long size = 0;
+        for (String[] row : rows) {
+            size += ROW_OVERHEAD;
+            for (String value : row) {
+                size += value.length();
+            }
+        }
+        if (size > maxChars) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(Collections.unmodifiableList(rows), tags, size));
+        chars += size;
+        for (String tag : tags) {
+            Set<String> keys = keysByTag.get(tag);
+            if (keys == null) {
+                keys = new HashSet<>();
+                keysByTag.put(tag, keys);
+            }
+            keys.add(key);
+        }
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (chars > maxChars) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            forget(evicted.getKey(), evicted.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the results that depend on the rows of the batch.
+     */
+    @Override
+    public synchronized void committed(String file, List<Map<String, Object>> rows) {
+        generation++;
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (Map<String, Object> row : rows) {
+            if (file.endsWith("conferences.csv")) {
+                invalidate("paper|" + row.get("Title"));
+                invalidate("conference|" + row.get("ConferenceName"));
+                invalidateAuthors(row.get("Authors"));
+            } else if (file.endsWith("journals.csv")) {
+                invalidate("paper|" + row.get("Title"));
+                invalidate("journal|" + row.get("JournalName") + "|" + row.get("Volume"));
+                invalidateAuthors(row.get("Authors"));
+            } else if (file.endsWith("friendships.csv")) {
+                invalidate("friend|" + row.get("Author"));
+            }
+        }
+    }
+
+    private void invalidateAuthors(Object authors) {
+        if (authors == null) {
+            return;
+        }
+        for (String author : ((String) authors).split(";")) {
+            invalidate("wrote|" + author.trim());
+        }
+    }
+
+    private void invalidate(String tag) {
+        Set<String> keys = keysByTag.get(tag);
+        if (keys == null) {
+            return;
+        }
+        for (String key : new HashSet<>(keys)) {
+            if (remove(key)) {
+                invalidations++;
+            }
+        }
+    }
+
+    private boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        forget(key, entry);
+        return true;
+    }
+
+    // The entry is already out of entries, we take it out of the size and
+    // of its tags
+    private void forget(String key, Entry entry) {
+        chars -= entry.chars;
+        for (String tag : entry.tags) {
+            Set<String> keys = keysByTag.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByTag.remove(tag);
+                }
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return fraction of the lookups that found their result, 0 if none
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Result cache: " + hits + " hits, " + misses + " misses ("
+                + String.format("%.1f", getHitRatio() * 100) + "% hit ratio), "
+                + evictions + " evictions, " + invalidations + " invalidations, "
+                + entries.size() + " results in " + chars + " chars";
+    }
+}
@@ -0,0 +1,174 @@
+package master.neo4j;
+
+/**
+ * Layouts in which the query results are written.
+ *
+ * LINES is the original one: one "Qn: " line per query, with the first row
+ * of the result up front and the second column of every row in a list, or
+ * one line per row for results that are not grouped. CSV and JSON write one
+ * line per row, CSV with the query as the first field and JSON as an object
+ * with the query and a member per column.
+ *
+ * @author fran
+ */
+enum ResultFormat {
+
+    LINES {
+        @Override
+        Rows start(final String query, final boolean grouped, final String[] columns) {
+            return new Rows() {
+                // Columns of the first row besides the list, written last
+                private String tail;
+                private boolean first = true;
+
+                @Override
+                public void row(StringBuilder out, String[] values) {
+                    if (!grouped) {
+                        out.append(query).append(": [");
+                        join(out, values);
+                        out.append("]\n");
+                        return;
+                    }
+                    if (first) {
+                        out.append(query).append(": ").append(values[0]).append(",[");
+                        tail = values.length > 2 ? values[2] : null;
+                        first = false;
+                    } else {
+                        out.append(", ");
+                    }
+                    out.append(values[1]);
+                }
+
+                @Override
+                public void end(StringBuilder out) {
+                    if (!grouped) {
+                        return;
+                    }
+                    if (first) {
+                        out.append(query).append(": ,[");
+                    }
+                    out.append(']');
+                    if (columns.length > 2) {
+                        out.append(',').append(tail == null ? "" : tail);
+                    }
+                    out.append('\n');
+                }
+            };
+        }
+    },
+    CSV {
+        @Override
+        Rows start(final String query, boolean grouped, String[] columns) {
+            return new Rows() {
+                @Override
+                public void row(StringBuilder out, String[] values) {
+                    out.append(query);
+                    for (String value : values) {
+                        out.append(',');
+                        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                            out.append('"').append(value.replace("\"", "\"\"")).append('"');
+                        } else {
+                            out.append(value);
+                        }
+                    }
+                    out.append('\n');
+                }
+
+                @Override
+                public void end(StringBuilder out) {
+                }
+            };
+        }
+    },
+    JSON {
+        @Override
+        Rows start(final String query, boolean grouped, final String[] columns) {
+            return new Rows() {
+                @Override
+                public void row(StringBuilder out, String[] values) {
+                    out.append("{\"query\":");
+                    quote(out, query);
+                    for (int i = 0; i < values.length; i++) {
+                        out.append(',');
+                        quote(out, columns[i]);
+                        out.append(':');
+                        quote(out, values[i]);
+                    }
+                    out.append("}\n");
+                }
+
+                @Override
+                public void end(StringBuilder out) {
+                }
+            };
+        }
+    };
+
+    /**
+     * Writes the rows of one result, in order.
+     */
+    interface Rows {
+
+        void row(StringBuilder out, String[] values);
+
+        void end(StringBuilder out);
+    }
+
+    /**
+     * @param query name of the query, Q1 to Q4
+     * @param grouped whether the rows share their first column and are
+     * written as a list, in the LINES layout
+     * @param columns names of the columns
+     * @return a writer for the rows of one result
+     */
+    abstract Rows start(String query, boolean grouped, String[] columns);
+
+    /**
+     * @param name lines, csv or json, in any case
+     * @return
+     */
+    public static ResultFormat parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    private static void join(StringBuilder out, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(values[i]);
+        }
+    }
+
+    private static void quote(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,286 @@
+package master.neo4j;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Appends the query results to the results file, which stays open for the
+ * life of the sink. Rows are formatted as the query iterator produces them
+ * into chunks of at most CHUNK chars, and a single writer thread takes the
+ * chunks from a bounded queue and writes them, so no result is ever held in
+ * memory whole and producers wait when the disk falls behind.
+ *
+ * Results are written one after the other: opening a result waits until the
+ * one before is closed. Results computed concurrently are buffered instead,
+ * and written whole, in the order the caller chooses, once complete.
+ *
+ * @author fran
+ */
+class ResultSink implements Closeable {
+
+    // Chars formatted before they are handed to the writer thread
+    private static final int CHUNK = 16 * 1024;
+    // Marks the end of the chunks in the queue
+    private static final String END = new String();
+
+    private final File file;
+    private final ResultFormat format;
+    private final BlockingQueue<String> queue;
+    private final Semaphore turn = new Semaphore(1);
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final Thread writer;
+    private final Metrics metrics;
+    private boolean closed;
+
+    /**
+     * @param file results file, appended to
+     * @param format
+     * @param queueChunks chunks that may wait for the writer thread
+     * @param metrics where the time spent writing is recorded
+     * @throws IOException
+     */
+    public ResultSink(File file, ResultFormat format, int queueChunks, Metrics metrics)
+            throws IOException {
+        this.file = file;
+        this.format = format;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(queueChunks);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), "UTF-8"), CHUNK);
+        this.writer = new Thread("result-sink") {
+            @Override
+            public void run() {
+                drain(out);
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void drain(Writer out) {
+        try {
+            String chunk;
+            while ((chunk = queue.take()) != END) {
+                if (failure.get() != null) {
+                    // Keep taking, so that producers don't wait forever
+                    continue;
+                }
+                try {
+                    long start = System.nanoTime();
+                    out.write(chunk);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                    metrics.timer("result.write").update(System.nanoTime() - start);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * Starts a result. A streamed one waits until the previous one is closed,
+     * and its rows go to the file as they come. A buffered one is kept in
+     * memory, can be filled at the same time as others, and is written once
+     * closed with write.
+     *
+     * @param buffered
+     * @param query name of the query, Q1 to Q4
+     * @param grouped whether the rows share their first column, see
+     * ResultFormat
+     * @param columns names of the columns of the rows
+     * @return the result, which must be closed
+     * @throws IOException if the sink is closed
+     */
+    public Result open(boolean buffered, String query, boolean grouped, String... columns)
+            throws IOException {
+        if (!buffered) {
+            turn.acquireUninterruptibly();
+        }
+        synchronized (this) {
+            if (closed) {
+                if (!buffered) {
+                    turn.release();
+                }
+                throw new IOException("Result sink on " + file + " is closed");
+            }
+        }
+        return new Result(format.start(query, grouped, columns), buffered);
+    }
+
+    /**
+     * Writes a buffered result, once the result being streamed, if any, is
+     * closed.
+     *
+     * @param result a closed buffered result
+     * @throws IOException
+     */
+    public void write(Result result) throws IOException {
+        if (!result.buffered || !result.done) {
+            throw new IllegalArgumentException("Only closed buffered results can be written");
+        }
+        turn.acquireUninterruptibly();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Result sink on " + file + " is closed");
+                }
+            }
+            StringBuilder buffer = result.buffer;
+            for (int i = 0; i < buffer.length(); i += CHUNK) {
+                put(buffer.substring(i, Math.min(i + CHUNK, buffer.length())));
+            }
+        } finally {
+            turn.release();
+        }
+    }
+
+    private void put(String chunk) throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw new IOException("Can't write results to " + file, e);
+        }
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing results to " + file, ex);
+        }
+    }
+
+    /**
+     * Writes whatever is queued and closes the file. Closing it again does
+     * nothing.
+     *
+     * @throws IOException if some result could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        turn.acquireUninterruptibly();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            turn.release();
+        }
+        if (failure.get() != null) {
+            throw new IOException("Can't write results to " + file, failure.get());
+        }
+    }
+
+    /**
+     * The rows of one query.
+     */
+    class Result implements Closeable {
+
+        private final ResultFormat.Rows rows;
+        private final boolean buffered;
+        private final StringBuilder buffer = new StringBuilder();
+        private long count;
+        private boolean done;
+        // Copy of the rows, while they fit in recordLimit chars
+        private List<String[]> recorded;
+        private long recordedChars;
+        private long recordLimit;
+
+        private Result(ResultFormat.Rows rows, boolean buffered) {
+            this.rows = rows;
+            this.buffered = buffered;
+        }
+
+        public void row(String... values) throws IOException {
+            rows.row(buffer, values);
+            count++;
+            if (recorded != null) {
+                for (String value : values) {
+                    recordedChars += value.length();
+                }
+                if (recordedChars > recordLimit) {
+                    recorded = null;
+                } else {
+                    recorded.add(values.clone());
+                }
+            }
+            if (!buffered && buffer.length() >= CHUNK) {
+                put(buffer.toString());
+                buffer.setLength(0);
+            }
+        }
+
+        public long getRows() {
+            return count;
+        }
+
+        /**
+         * Keeps a copy of the rows from now on, unless they take more than
+         * the given number of chars.
+         *
+         * @param maxChars
+         */
+        public void record(long maxChars) {
+            recorded = new ArrayList<>();
+            recordedChars = 0;
+            recordLimit = maxChars;
+        }
+
+        /**
+         * @return the rows since record was called, or null if they did not
+         * fit or it was not called
+         */
+        public List<String[]> getRecorded() {
+            return recorded;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (buffered) {
+                rows.end(buffer);
+                return;
+            }
+            try {
+                rows.end(buffer);
+                if (buffer.length() > 0) {
+                    put(buffer.toString());
+                }
+            } finally {
+                turn.release();
+            }
+        }
+    }
+}
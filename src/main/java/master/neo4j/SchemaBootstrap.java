@@ -0,0 +1,140 @@
+package master.neo4j;
+
+import java.util.concurrent.TimeUnit;
+import master.neo4j.Neo4jApp.Labels;
+import org.neo4j.graphdb.ConstraintViolationException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+/**
+ * Creates the indexes and uniqueness constraints the loaders MERGE on and the
+ * queries look up by. Without them every MERGE is a label scan and ingestion
+ * becomes quadratic with the size of the graph.
+ *
+ * @author fran
+ */
+class SchemaBootstrap {
+
+    // How long we wait for the indexes to be populated
+    private static final long ONLINE_TIMEOUT_MINUTES = 30;
+
+    /**
+     * Properties that identify a node on their own, so they get a uniqueness
+     * constraint, which is backed by an index too.
+     */
+    private static final Object[][] UNIQUE = {
+        {Labels.Author, "surname"},
+        {Labels.Reviewer, "surname"}
+    };
+
+    /**
+     * Properties MERGEd on together with others, indexed only. Neo4j has no
+     * composite indexes, so journals are indexed by name and the volume is
+     * checked on the few journals found.
+     */
+    private static final Object[][] INDEXED = {
+        {Labels.Paper, "title"},
+        {Labels.Conference, "name"},
+        {Labels.Journal, "name"}
+    };
+
+    private SchemaBootstrap() {
+    }
+
+    /**
+     * Creates whatever index or constraint is missing and waits for all of
+     * them to be online.
+     *
+     * @param db
+     */
+    public static void ensureSchema(GraphDatabaseService db) {
+        long start = System.currentTimeMillis();
+        for (Object[] unique : UNIQUE) {
+            Label label = (Label) unique[0];
+            String property = (String) unique[1];
+            if (!hasConstraint(db, label, property) && !hasIndex(db, label, property)) {
+                try (Transaction tx = db.beginTx()) {
+                    db.schema().constraintFor(label).assertPropertyIsUnique(property).create();
+                    tx.success();
+                    System.out.println("Created constraint " + label + "." + property);
+                } catch (ConstraintViolationException e) {
+                    // The data already loaded has duplicates, an index is
+                    // the best we can do
+                    System.err.println("Constraint " + label + "." + property
+                            + " can't be created: " + e.getMessage());
+                    createIndex(db, label, property);
+                }
+            }
+        }
+        for (Object[] indexed : INDEXED) {
+            Label label = (Label) indexed[0];
+            String property = (String) indexed[1];
+            if (!hasIndex(db, label, property)) {
+                createIndex(db, label, property);
+            }
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.schema().awaitIndexesOnline(ONLINE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            tx.success();
+        }
+        System.out.println("Schema online in "
+                + (System.currentTimeMillis() - start) + " ms\n");
+    }
+
+    /**
+     * Declares the same schema on a store being written by the batch
+     * inserter. The indexes are populated when the inserter shuts down.
+     *
+     * @param inserter
+     */
+    public static void createDeferred(BatchInserter inserter) {
+        for (Object[] unique : UNIQUE) {
+            inserter.createDeferredConstraint((Label) unique[0])
+                    .assertPropertyIsUnique((String) unique[1]).create();
+        }
+        for (Object[] indexed : INDEXED) {
+            inserter.createDeferredSchemaIndex((Label) indexed[0])
+                    .on((String) indexed[1]).create();
+        }
+    }
+
+    private static void createIndex(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            db.schema().indexFor(label).on(property).create();
+            tx.success();
+        }
+        System.out.println("Created index " + label + "." + property);
+    }
+
+    private static boolean hasIndex(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            for (IndexDefinition index : db.schema().getIndexes(label)) {
+                for (String key : index.getPropertyKeys()) {
+                    if (key.equals(property)) {
+                        return true;
+                    }
+                }
+            }
+            tx.success();
+        }
+        return false;
+    }
+
+    private static boolean hasConstraint(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            for (ConstraintDefinition constraint : db.schema().getConstraints(label)) {
+                for (String key : constraint.getPropertyKeys()) {
+                    if (key.equals(property)) {
+                        return true;
+                    }
+                }
+            }
+            tx.success();
+        }
+        return false;
+    }
+}